@@ -7,7 +7,9 @@ enum AtomOp {
     TST,
     JMP,
     LBL,
-    HLT
+    HLT;
+
+    static final AtomOp[] VALUES = values();
 }
 
 public class Atom {
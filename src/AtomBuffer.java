@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Atom stream packed into one growable int[], six ints per atom: op ordinal,
+ * src1, src2, dest, cmp and label. Operands and labels are {@link SymbolTable}
+ * ids ({@link SymbolTable#NONE} when absent); a missing cmp is {@link #NO_CMP}.
+ */
+public class AtomBuffer implements AtomSink {
+    public static final int NO_CMP = -1;
+
+    private static final int STRIDE = 6;
+    private static final int OP = 0;
+    private static final int SRC1 = 1;
+    private static final int SRC2 = 2;
+    private static final int DEST = 3;
+    private static final int CMP = 4;
+    private static final int LABEL = 5;
+
+    public final SymbolTable symbols;
+    private int[] data = new int[64 * STRIDE];
+    private int size = 0;
+
+    public AtomBuffer(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * Packs atoms into a buffer with a new symbol table. Labels named the way
+     * the parser names its own ("L3") are made again with
+     * {@link SymbolTable#newLabel}, so they stay private to the stream; any
+     * other label is interned by name.
+     */
+    public static AtomBuffer of(List<Atom> atoms) {
+        AtomBuffer buffer = new AtomBuffer(new SymbolTable());
+        SymbolTable symbols = buffer.symbols;
+        Map<String, Integer> unnamed = new HashMap<>();
+        for (Atom a : atoms) {
+            int label = SymbolTable.isUnnamedLabel(a.label)
+                    ? unnamed.computeIfAbsent(a.label, name -> symbols.newLabel())
+                    : symbols.label(a.label);
+            buffer.emit(a.op, symbols.operand(a.src1), symbols.operand(a.src2), symbols.operand(a.dest),
+                    a.cmp == null ? NO_CMP : a.cmp, label);
+        }
+        return buffer;
+    }
+
+    @Override
+    public void emit(AtomOp op, int src1, int src2, int dest, int cmp, int label) {
+        int at = size * STRIDE;
+        if (at == data.length) data = Arrays.copyOf(data, data.length * 2);
+        data[at + OP] = op.ordinal();
+        data[at + SRC1] = src1;
+        data[at + SRC2] = src2;
+        data[at + DEST] = dest;
+        data[at + CMP] = cmp;
+        data[at + LABEL] = label;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public AtomOp op(int i) {
+        return AtomOp.VALUES[data[i * STRIDE + OP]];
+    }
+
+    public int src1(int i) {
+        return data[i * STRIDE + SRC1];
+    }
+
+    public int src2(int i) {
+        return data[i * STRIDE + SRC2];
+    }
+
+    public int dest(int i) {
+        return data[i * STRIDE + DEST];
+    }
+
+    public int cmp(int i) {
+        return data[i * STRIDE + CMP];
+    }
+
+    public int label(int i) {
+        return data[i * STRIDE + LABEL];
+    }
+
+    /**
+     * Emits every atom, in order, to sink.
+     */
+    public void replay(AtomSink sink) {
+        for (int at = 0; at < size * STRIDE; at += STRIDE) {
+            sink.emit(AtomOp.VALUES[data[at + OP]], data[at + SRC1], data[at + SRC2], data[at + DEST],
+                    data[at + CMP], data[at + LABEL]);
+        }
+    }
+
+    public Atom atom(int i) {
+        return toAtom(symbols, op(i), src1(i), src2(i), dest(i), cmp(i), label(i));
+    }
+
+    public List<Atom> toList() {
+        List<Atom> atoms = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            atoms.add(atom(i));
+        }
+        return atoms;
+    }
+
+    static Atom toAtom(SymbolTable symbols, AtomOp op, int src1, int src2, int dest, int cmp, int label) {
+        return new Atom(op, symbols.name(src1), symbols.name(src2), symbols.name(dest),
+                cmp == NO_CMP ? null : cmp, symbols.name(label));
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An atom stream as a doubly linked list, for passes that move and insert
+ * atoms all over a buffer. Every edit is constant time and {@link #toBuffer}
+ * copies the result out once, so a pass that rewrites many loops costs the
+ * size of the loops rather than the size of the stream per loop.
+ *
+ * Nodes 0 to size()-1 of the source buffer are its atoms, in order; nodes
+ * added later are numbered after them. Node ids stay valid across edits.
+ */
+final class AtomList {
+    static final int END = -1;
+
+    /**
+     * A label and the first JMP back to it, as nodes.
+     */
+    record Loop(int head, int tail) {}
+    // next of a removed node
+    private static final int REMOVED = -2;
+
+    final SymbolTable symbols;
+    private int[] ops;
+    private int[] src1;
+    private int[] src2;
+    private int[] dest;
+    private int[] cmp;
+    private int[] label;
+    private int[] next;
+    private int[] prev;
+    private int count;
+    private int first;
+    private int last;
+    private int length;
+    private boolean changed;
+
+    AtomList(AtomBuffer atoms) {
+        symbols = atoms.symbols;
+        int n = atoms.size();
+        int capacity = Math.max(16, n + n / 4);
+        ops = new int[capacity];
+        src1 = new int[capacity];
+        src2 = new int[capacity];
+        dest = new int[capacity];
+        cmp = new int[capacity];
+        label = new int[capacity];
+        next = new int[capacity];
+        prev = new int[capacity];
+        for (int i = 0; i < n; i++) {
+            ops[i] = atoms.op(i).ordinal();
+            src1[i] = atoms.src1(i);
+            src2[i] = atoms.src2(i);
+            dest[i] = atoms.dest(i);
+            cmp[i] = atoms.cmp(i);
+            label[i] = atoms.label(i);
+            next[i] = i + 1;
+            prev[i] = i - 1;
+        }
+        count = n;
+        length = n;
+        first = n == 0 ? END : 0;
+        last = n - 1;
+        if (n > 0) next[n - 1] = END;
+    }
+
+    int first() {
+        return first;
+    }
+
+    int next(int node) {
+        return next[node];
+    }
+
+    int prev(int node) {
+        return prev[node];
+    }
+
+    AtomOp op(int node) {
+        return AtomOp.VALUES[ops[node]];
+    }
+
+    int src1(int node) {
+        return src1[node];
+    }
+
+    int src2(int node) {
+        return src2[node];
+    }
+
+    int dest(int node) {
+        return dest[node];
+    }
+
+    int cmp(int node) {
+        return cmp[node];
+    }
+
+    int label(int node) {
+        return label[node];
+    }
+
+    /**
+     * True once any edit has been made.
+     */
+    boolean changed() {
+        return changed;
+    }
+
+    void set(int node, AtomOp op, int src1, int src2, int dest, int cmp, int label) {
+        this.ops[node] = op.ordinal();
+        this.src1[node] = src1;
+        this.src2[node] = src2;
+        this.dest[node] = dest;
+        this.cmp[node] = cmp;
+        this.label[node] = label;
+        changed = true;
+    }
+
+    /**
+     * Adds a new atom just before node at, or at the end if at is END, and
+     * returns its node.
+     */
+    int insertBefore(int at, AtomOp op, int src1, int src2, int dest, int cmp, int label) {
+        int node = newNode();
+        set(node, op, src1, src2, dest, cmp, label);
+        link(node, at == END ? last : prev[at], at);
+        return node;
+    }
+
+    /**
+     * Adds a new atom just after node at and returns its node.
+     */
+    int insertAfter(int at, AtomOp op, int src1, int src2, int dest, int cmp, int label) {
+        int node = newNode();
+        set(node, op, src1, src2, dest, cmp, label);
+        link(node, at, next[at]);
+        return node;
+    }
+
+    /**
+     * Adds a copy of node's atom, with its label replaced, just before at.
+     */
+    int copyBefore(int at, int node, int newLabel) {
+        return insertBefore(at, op(node), src1[node], src2[node], dest[node], cmp[node], newLabel);
+    }
+
+    void moveBefore(int node, int at) {
+        if (node == at || next[node] == at) return;
+        unlink(node);
+        link(node, prev[at], at);
+        changed = true;
+    }
+
+    void remove(int node) {
+        unlink(node);
+        next[node] = REMOVED;
+        changed = true;
+    }
+
+    boolean removed(int node) {
+        return next[node] == REMOVED;
+    }
+
+    /**
+     * Every label with a later JMP back to it, as the label and the first
+     * such JMP, innermost first: by the number of atoms between them, then
+     * by where they end. Call before any edit, while nodes are still the
+     * positions of the source buffer.
+     */
+    List<Loop> loops() {
+        if (changed) throw new IllegalStateException("Loops must be found before the list is edited");
+        int[] labelAt = new int[symbols.size()];
+        boolean[] closed = new boolean[labelAt.length];
+        Arrays.fill(labelAt, -1);
+        List<Loop> loops = new ArrayList<>();
+        for (int node = 0; node < count; node++) {
+            AtomOp op = op(node);
+            if (op == AtomOp.LBL) labelAt[label[node]] = node;
+            if (op == AtomOp.JMP && labelAt[label[node]] >= 0 && !closed[label[node]]) {
+                closed[label[node]] = true;
+                loops.add(new Loop(labelAt[label[node]], node));
+            }
+        }
+        loops.sort((a, b) -> a.tail() - a.head() != b.tail() - b.head()
+                ? Integer.compare(a.tail() - a.head(), b.tail() - b.head())
+                : Integer.compare(a.tail(), b.tail()));
+        return loops;
+    }
+
+    AtomBuffer toBuffer() {
+        AtomBuffer out = new AtomBuffer(symbols);
+        for (int node = first; node != END; node = next[node]) {
+            out.emit(AtomOp.VALUES[ops[node]], src1[node], src2[node], dest[node], cmp[node], label[node]);
+        }
+        return out;
+    }
+
+    int size() {
+        return length;
+    }
+
+    private int newNode() {
+        if (count == ops.length) {
+            int capacity = count * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            src1 = Arrays.copyOf(src1, capacity);
+            src2 = Arrays.copyOf(src2, capacity);
+            dest = Arrays.copyOf(dest, capacity);
+            cmp = Arrays.copyOf(cmp, capacity);
+            label = Arrays.copyOf(label, capacity);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+        }
+        return count++;
+    }
+
+    private void link(int node, int before, int after) {
+        prev[node] = before;
+        next[node] = after;
+        if (before == END) first = node;
+        else next[before] = node;
+        if (after == END) last = node;
+        else prev[after] = node;
+        length++;
+    }
+
+    private void unlink(int node) {
+        int before = prev[node];
+        int after = next[node];
+        if (before == END) first = after;
+        else next[before] = after;
+        if (after == END) last = before;
+        else prev[after] = before;
+        length--;
+    }
+}
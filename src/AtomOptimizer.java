@@ -0,0 +1,268 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optimizations on the atom stream, run between the parser and the code
+ * generator. Each pass reads one {@link AtomBuffer} and emits a new one over
+ * the same {@link SymbolTable}.
+ */
+public final class AtomOptimizer {
+    private static final int NONE = SymbolTable.NONE;
+    private static final int NO_CMP = AtomBuffer.NO_CMP;
+
+    private AtomOptimizer() {}
+
+    public static AtomBuffer optimize(AtomBuffer atoms) {
+        return optimize(atoms, new LoopUnroller());
+    }
+
+    public static AtomBuffer optimize(AtomBuffer atoms, LoopUnroller unroller) {
+        AtomBuffer result = retargetTemps(atoms);
+        result = foldConstants(result);
+        result = unroller.unroll(result);
+        // Unrolled copies each see their own value of the loop variable
+        result = foldConstants(result);
+        result = LoopOptimizer.optimize(result);
+        result = numberValues(result);
+        // Propagate the copies value numbering left behind
+        result = foldConstants(result);
+        result = removeDeadTemps(result);
+        return ControlFlowGraph.build(result).simplify().toAtoms();
+    }
+
+    private static boolean isArith(AtomOp op) {
+        return op == AtomOp.ADD || op == AtomOp.SUB || op == AtomOp.MUL || op == AtomOp.DIV;
+    }
+
+    private static void copy(AtomBuffer from, int i, AtomBuffer to) {
+        to.emit(from.op(i), from.src1(i), from.src2(i), from.dest(i), from.cmp(i), from.label(i));
+    }
+
+    /**
+     * Number of times each symbol is read as src1 or src2.
+     */
+    static int[] useCounts(AtomBuffer atoms) {
+        int[] uses = new int[atoms.symbols.size()];
+        for (int i = 0; i < atoms.size(); i++) {
+            uses[atoms.src1(i)]++;
+            uses[atoms.src2(i)]++;
+        }
+        uses[NONE] = 0;
+        return uses;
+    }
+
+    /**
+     * Rewrites "t = a op b; x = t" into "x = a op b" when that MOV is the
+     * temp's only use, which is how the parser compiles every assignment of
+     * an expression.
+     */
+    static AtomBuffer retargetTemps(AtomBuffer atoms) {
+        SymbolTable symbols = atoms.symbols;
+        int[] uses = useCounts(atoms);
+        AtomBuffer out = new AtomBuffer(symbols);
+        int n = atoms.size();
+        for (int i = 0; i < n; i++) {
+            int dest = atoms.dest(i);
+            if (isArith(atoms.op(i)) && i + 1 < n && symbols.isTemp(dest) && uses[dest] == 1
+                    && atoms.op(i + 1) == AtomOp.MOV && atoms.src1(i + 1) == dest) {
+                out.emit(atoms.op(i), atoms.src1(i), atoms.src2(i), atoms.dest(i + 1), NO_CMP, NONE);
+                i++;
+            } else {
+                copy(atoms, i, out);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Forward pass over each basic block that replaces operands with the
+     * literal or the symbol they were last copied from, computes arithmetic
+     * on two literals at compile time (division by zero is left for run time)
+     * and resolves tests of two literals into a jump or nothing. Everything
+     * known is forgotten at each label.
+     */
+    static AtomBuffer foldConstants(AtomBuffer atoms) {
+        SymbolTable symbols = atoms.symbols;
+        Values values = new Values(symbols);
+
+        AtomBuffer out = new AtomBuffer(symbols);
+        for (int i = 0; i < atoms.size(); i++) {
+            AtomOp op = atoms.op(i);
+            if (op == AtomOp.LBL) {
+                values.clear();
+                copy(atoms, i, out);
+                continue;
+            }
+
+            int src1 = values.resolve(atoms.src1(i));
+            int src2 = values.resolve(atoms.src2(i));
+            int dest = atoms.dest(i);
+
+            if (isArith(op) && symbols.isLiteral(src1) && symbols.isLiteral(src2)) {
+                int a = symbols.literalValue(src1);
+                int b = symbols.literalValue(src2);
+                if (op != AtomOp.DIV || b != 0) {
+                    int folded = switch (op) {
+                        case ADD -> a + b;
+                        case SUB -> a - b;
+                        case MUL -> a * b;
+                        default -> a / b;
+                    };
+                    op = AtomOp.MOV;
+                    src1 = symbols.literal(Integer.toString(folded));
+                    src2 = NONE;
+                }
+            }
+
+            if (op == AtomOp.TST && symbols.isLiteral(src1) && symbols.isLiteral(src2)) {
+                if (VirtualMachine.compare(atoms.cmp(i), symbols.literalValue(src1), symbols.literalValue(src2))) {
+                    out.emit(AtomOp.JMP, NONE, NONE, NONE, NO_CMP, atoms.label(i));
+                }
+                continue;
+            }
+            if (op == AtomOp.MOV && src1 == dest) continue;
+
+            out.emit(op, src1, src2, dest, atoms.cmp(i), atoms.label(i));
+            if (dest != NONE) values.assign(dest, op == AtomOp.MOV ? src1 : NONE);
+        }
+        return out;
+    }
+
+    /**
+     * What each symbol is known to hold within the current block: a literal,
+     * or another symbol it was copied from. Every assignment bumps the
+     * symbol's version, which silently invalidates copies taken from it, and
+     * {@link #clear()} just starts a new block number.
+     */
+    private static final class Values {
+        private final SymbolTable symbols;
+        // Only symbols that exist up front are ever assigned; literals made by folding are not
+        private final int tracked;
+        private final int[] value;
+        private final int[] valueBlock;
+        private final int[] valueVersion;
+        private final int[] version;
+        private int block = 1;
+
+        Values(SymbolTable symbols) {
+            this.symbols = symbols;
+            this.tracked = symbols.size();
+            value = new int[tracked];
+            valueBlock = new int[tracked];
+            valueVersion = new int[tracked];
+            version = new int[tracked];
+        }
+
+        void clear() {
+            block++;
+        }
+
+        int resolve(int id) {
+            if (id == NONE || id >= tracked || valueBlock[id] != block) return id;
+            int known = value[id];
+            if (symbols.isLiteral(known) || version[known] == valueVersion[id]) return known;
+            return id;
+        }
+
+        /**
+         * Records an assignment to dest, of source when it is a plain copy and NONE otherwise.
+         */
+        void assign(int dest, int source) {
+            version[dest]++;
+            if (source == NONE) {
+                valueBlock[dest] = 0;
+                return;
+            }
+            value[dest] = source;
+            valueBlock[dest] = block;
+            valueVersion[dest] = symbols.isLiteral(source) ? 0 : version[source];
+        }
+    }
+
+    private record Expr(AtomOp op, int src1, int version1, int src2, int version2) {}
+
+    private record Held(int symbol, int version) {}
+
+    /**
+     * Local value numbering: within a block, an arithmetic atom whose
+     * operands hold the same values as an earlier one (in either order for
+     * ADD and MUL) becomes a MOV from the earlier result, as long as that
+     * result has not been overwritten. Values are identified by symbol and
+     * assignment count. Labels, jumps and tests end the block.
+     */
+    static AtomBuffer numberValues(AtomBuffer atoms) {
+        SymbolTable symbols = atoms.symbols;
+        int[] version = new int[symbols.size()];
+        Map<Expr, Held> available = new HashMap<>();
+
+        AtomBuffer out = new AtomBuffer(symbols);
+        for (int i = 0; i < atoms.size(); i++) {
+            AtomOp op = atoms.op(i);
+            int dest = atoms.dest(i);
+            if (op == AtomOp.LBL || op == AtomOp.JMP || op == AtomOp.TST) {
+                if (!available.isEmpty()) available.clear();
+                copy(atoms, i, out);
+                continue;
+            }
+            if (!isArith(op)) {
+                copy(atoms, i, out);
+                if (dest != NONE) version[dest]++;
+                continue;
+            }
+
+            int src1 = atoms.src1(i);
+            int src2 = atoms.src2(i);
+            int v1 = version[src1];
+            int v2 = version[src2];
+            if ((op == AtomOp.ADD || op == AtomOp.MUL) && (src1 > src2 || src1 == src2 && v1 > v2)) {
+                int t = src1;
+                src1 = src2;
+                src2 = t;
+                t = v1;
+                v1 = v2;
+                v2 = t;
+            }
+            Expr expr = new Expr(op, src1, v1, src2, v2);
+            Held held = available.get(expr);
+            if (held != null && version[held.symbol()] == held.version()) {
+                // Recomputing into the symbol that already holds the value is a no-op
+                if (held.symbol() != dest) {
+                    out.emit(AtomOp.MOV, held.symbol(), NONE, dest, NO_CMP, NONE);
+                    version[dest]++;
+                }
+                continue;
+            }
+
+            copy(atoms, i, out);
+            version[dest]++;
+            available.put(expr, new Held(dest, version[dest]));
+        }
+        return out;
+    }
+
+    /**
+     * Drops atoms that only compute a temp nobody reads. A division that is
+     * not by a nonzero literal is kept, since it may still have to fail.
+     */
+    static AtomBuffer removeDeadTemps(AtomBuffer atoms) {
+        SymbolTable symbols = atoms.symbols;
+        int[] uses = useCounts(atoms);
+        int n = atoms.size();
+        boolean[] dead = new boolean[n];
+        for (int i = n - 1; i >= 0; i--) {
+            AtomOp op = atoms.op(i);
+            int dest = atoms.dest(i);
+            if (dest == NONE || !symbols.isTemp(dest) || uses[dest] > 0) continue;
+            if (op == AtomOp.DIV && !(symbols.isLiteral(atoms.src2(i)) && symbols.literalValue(atoms.src2(i)) != 0)) continue;
+            dead[i] = true;
+            uses[atoms.src1(i)]--;
+            uses[atoms.src2(i)]--;
+        }
+
+        AtomBuffer out = new AtomBuffer(symbols);
+        for (int i = 0; i < n; i++) {
+            if (!dead[i]) copy(atoms, i, out);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Receives atoms as the parser produces them. Operands and labels are
+ * {@link SymbolTable} ids, cmp is {@link AtomBuffer#NO_CMP} when absent.
+ */
+public interface AtomSink {
+    void emit(AtomOp op, int src1, int src2, int dest, int cmp, int label);
+}
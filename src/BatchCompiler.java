@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
+
+/**
+ * Compiles many source files in one JVM, on a fork-join pool of a fixed
+ * number of workers.
+ *
+ * Files are independent: each one gets its own {@link Parser}, {@link
+ * CodeGenerator} and symbol table, and each worker thread keeps its own
+ * {@link Lexer}, so workers share nothing but the list of results. A file
+ * that fails to compile produces a {@link Diagnostic} instead of output and
+ * does not stop the others. Each program is written as an {@link ObjectFile}
+ * named after the source with {@link #OUTPUT_EXTENSION}. With a
+ * {@link CompileCache}, a file compiled before with the same options is read
+ * back instead of compiled.
+ */
+public final class BatchCompiler {
+    public static final String SOURCE_EXTENSION = ".cj";
+    public static final String OUTPUT_EXTENSION = ObjectFile.EXTENSION;
+
+    public record Diagnostic(Path source, String message) {
+        @Override
+        public String toString() {
+            return source + ": " + message;
+        }
+    }
+
+    /**
+     * Outcome of a batch: how many files compiled, the words they produced,
+     * and the diagnostics of the rest in input order.
+     */
+    public record Result(int files, int compiled, long words, List<Diagnostic> diagnostics) {}
+
+    private final int threads;
+    private final boolean optimize;
+    private final int unroll;
+    private final CompileCache cache;
+    private final ThreadLocal<Lexer> lexers = ThreadLocal.withInitial(Lexer::new);
+
+    /**
+     * optimize and unroll are as for the -O and --unroll options of {@link Main};
+     * cache may be null.
+     */
+    public BatchCompiler(int threads, boolean optimize, int unroll, CompileCache cache) {
+        if (threads < 1) throw new IllegalArgumentException("Need at least one thread: " + threads);
+        this.threads = threads;
+        this.optimize = optimize;
+        this.unroll = unroll;
+        this.cache = cache;
+    }
+
+    public BatchCompiler(int threads, boolean optimize, int unroll) {
+        this(threads, optimize, unroll, null);
+    }
+
+    /**
+     * The sources named by path: every source file under it if it is a
+     * directory, otherwise the file itself if it is a source or object file,
+     * otherwise the files listed in it, one per line, relative to the list's
+     * directory.
+     */
+    public static List<Path> sources(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> walk = Files.walk(path)) {
+                return walk.filter(p -> p.toString().endsWith(SOURCE_EXTENSION) && Files.isRegularFile(p))
+                        .sorted()
+                        .toList();
+            }
+        }
+        if (path.toString().endsWith(SOURCE_EXTENSION) || path.toString().endsWith(ObjectFile.EXTENSION)) {
+            return List.of(path);
+        }
+        Path base = path.toAbsolutePath().getParent();
+        List<Path> sources = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) sources.add(base.resolve(line.strip()));
+        }
+        return sources;
+    }
+
+    /**
+     * Compiles every source into outDir, mirroring the layout of the sources
+     * below root; sources outside root keep just their file name.
+     */
+    public Result compile(List<Path> sources, Path root, Path outDir) {
+        Path absoluteRoot = root.toAbsolutePath().normalize();
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        List<Integer> sizes = forEach(sources, diagnostics, source -> {
+            CompileCache.Entry entry = compileEntry(source);
+            write(entry, outputFor(source, absoluteRoot, outDir));
+            return entry.code().length;
+        });
+        long total = 0;
+        for (Integer size : sizes) {
+            if (size != null) total += size;
+        }
+        return new Result(sources.size(), sources.size() - diagnostics.size(), total, diagnostics);
+    }
+
+    /**
+     * Compiles every source into an {@link ObjectModule} named after its file,
+     * or loads it if the source is a module's object file, for
+     * {@link Linker}. The list has null for each source that failed, and the
+     * diagnostics say why.
+     */
+    public List<ObjectModule> compileModules(List<Path> sources, List<Diagnostic> diagnostics) {
+        return forEach(sources, diagnostics, this::compileModule);
+    }
+
+    public ObjectModule compileModule(Path source) throws IOException {
+        if (source.toString().endsWith(ObjectFile.EXTENSION)) return ObjectFile.load(source).toModule();
+        String name = source.getFileName().toString();
+        if (name.endsWith(SOURCE_EXTENSION)) name = name.substring(0, name.length() - SOURCE_EXTENSION.length());
+        return ObjectModule.compile(name, parse(source), optimize, unroll);
+    }
+
+    private interface SourceTask<T> {
+        T run(Path source) throws IOException;
+    }
+
+    /**
+     * Runs task on every source on the pool and returns the results in input
+     * order, with null and a diagnostic for each source it failed on.
+     */
+    private <T> List<T> forEach(List<Path> sources, List<Diagnostic> diagnostics, SourceTask<T> task) {
+        Object[] results = new Object[sources.size()];
+        Diagnostic[] failures = new Diagnostic[sources.size()];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(sources.size());
+            for (int i = 0; i < sources.size(); i++) {
+                int index = i;
+                Path source = sources.get(i);
+                tasks.add(pool.submit(() -> {
+                    try {
+                        results[index] = task.run(source);
+                    } catch (IOException e) {
+                        failures[index] = new Diagnostic(source, "I/O error: " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        failures[index] = new Diagnostic(source, e.getMessage());
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> submitted : tasks) {
+                submitted.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        List<T> list = new ArrayList<>(results.length);
+        for (int i = 0; i < results.length; i++) {
+            if (failures[i] != null) diagnostics.add(failures[i]);
+            @SuppressWarnings("unchecked")
+            T result = (T) results[i];
+            list.add(result);
+        }
+        return list;
+    }
+
+    /**
+     * Runs the same passes as {@link Main} on one file, silently, or reads
+     * the result from the cache.
+     */
+    public int[] compileFile(Path source) throws IOException {
+        return compileEntry(source).code();
+    }
+
+    private CompileCache.Entry compileEntry(Path source) throws IOException {
+        if (cache == null) return generate(parse(source));
+        byte[] bytes = Files.readAllBytes(source);
+        String key = CompileCache.key(bytes, optimize, unroll);
+        CompileCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            entry = generate(parse(new TokenStream(ByteBuffer.wrap(bytes)).drain()));
+            cache.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Code and data for atoms; batches do not keep the atoms themselves.
+     */
+    private CompileCache.Entry generate(AtomBuffer atoms) {
+        CodeGenerator codeGen = new CodeGenerator();
+        int[] code;
+        if (optimize) {
+            atoms = AtomOptimizer.optimize(atoms, new LoopUnroller(unroll, LoopUnroller.DEFAULT_BUDGET));
+            code = new Peephole().optimize(codeGen.generateWithRegisters(atoms));
+        } else {
+            code = codeGen.generate(atoms);
+        }
+        return new CompileCache.Entry(code, codeGen.initialMemory(), codeGen.dataNames(), null);
+    }
+
+    private AtomBuffer parse(Path source) throws IOException {
+        return parse(lexers.get().tokenizeBuffer(source.toFile()));
+    }
+
+    private static AtomBuffer parse(TokenBuffer tokens) {
+        Parser parser = new Parser(tokens);
+        parser.setQuiet(true);
+        // Recursion is bounded, so no input can overflow a worker's stack
+        parser.parseProgramIterative();
+        return parser.atoms;
+    }
+
+    private static Path outputFor(Path source, Path root, Path outDir) {
+        Path absolute = source.toAbsolutePath().normalize();
+        Path relative = absolute.startsWith(root) ? root.relativize(absolute) : absolute.getFileName();
+        String name = relative.getFileName().toString();
+        if (name.endsWith(SOURCE_EXTENSION)) name = name.substring(0, name.length() - SOURCE_EXTENSION.length());
+        return outDir.resolve(relative).resolveSibling(name + OUTPUT_EXTENSION);
+    }
+
+    private static void write(CompileCache.Entry entry, Path out) throws IOException {
+        Path dir = out.getParent();
+        if (dir != null) Files.createDirectories(dir);
+        ObjectFile.write(out, entry.code(), entry.memory(), entry.dataNames());
+    }
+}
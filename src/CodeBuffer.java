@@ -0,0 +1,77 @@
+import java.util.Arrays;
+
+/**
+ * Growable int[] of machine words.
+ *
+ * A forward jump whose target is not known yet is linked into a chain
+ * through its own 20-bit address field: each unresolved word holds the index
+ * of the previous one, and {@link #END} closes the chain. Binding the label
+ * walks the chain and writes the real address into every word.
+ */
+public class CodeBuffer {
+    /** Empty chain, and the link stored in the last word of a chain. */
+    public static final int END = 0xFFFFF;
+
+    private int[] words;
+    private int size = 0;
+
+    public CodeBuffer() {
+        this(256);
+    }
+
+    public CodeBuffer(int capacity) {
+        words = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int word) {
+        if (size == words.length) words = Arrays.copyOf(words, size * 2);
+        words[size++] = word;
+    }
+
+    /**
+     * Appends a jump word whose address is filled in later and returns the new
+     * head of the chain it joins.
+     */
+    public int addForward(int word, int chain) {
+        if (size >= END) {
+            throw new IllegalStateException("Code too large for a 20-bit jump chain: " + size + " words");
+        }
+        int index = size;
+        add(Instruction.withAddress(word, chain));
+        return index;
+    }
+
+    /**
+     * Points every jump in chain at target and returns how many there were.
+     */
+    public int patch(int chain, int target) {
+        int count = 0;
+        while (chain != END) {
+            int word = words[chain];
+            words[chain] = Instruction.withAddress(word, target);
+            chain = Instruction.address(word);
+            count++;
+        }
+        return count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int i) {
+        return words[i];
+    }
+
+    public void set(int i, int word) {
+        words[i] = word;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(words, size);
+    }
+}
@@ -1,175 +1,306 @@
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.function.IntConsumer;
 
-public class CodeGenerator {
-    private static class PendingJump {
-        int instrIndex;
-        String label;
+public class CodeGenerator implements AtomSink {
+    private static final int ACCUMULATOR = 0;
+    // Holds the right-hand side of a BR
+    private static final int OPERAND = 1;
+    private static final int NONE = SymbolTable.NONE;
+    private static final int UNBOUND = -1;
+
+    private SymbolTable symbols;
+    // Shares temp cells and drops dead temp stores; null when atoms arrive one at a time
+    private Liveness liveness;
+
+    // Indexed by symbol id: data address + 1 (0 while unassigned), label address or UNBOUND
+    private int[] dataAddrs = new int[64];
+    private int[] labelAddrs = new int[64];
+    private final CodeBuffer code = new CodeBuffer();
+    // Chain of unresolved jumps per label, threaded through the jump words in code
+    private int[] pendingChains = new int[64];
+    private int pendingCount = 0;
 
-        PendingJump(int instrIndex, String label) {
-            this.instrIndex = instrIndex;
-            this.label = label;
-        }
-    }
+    private int nextDataAddr = 0;
 
-    private static final int ACCUMULATOR = 0;
+    // Streaming mode: finished words go to out and are dropped from code
+    private final IntConsumer out;
+    private int flushed = 0;
 
-    private final Map<String, Integer> dataTable = new LinkedHashMap<>();
-    private final Map<String, Integer> labelTable = new LinkedHashMap<>();
-    private final List<Integer> instructions = new ArrayList<>();
-    private final List<PendingJump> pendingJumps = new ArrayList<>();
+    public CodeGenerator() {
+        this.out = null;
+        Arrays.fill(labelAddrs, UNBOUND);
+        Arrays.fill(pendingChains, CodeBuffer.END);
+    }
 
-    private int nextDataAddr = 0;
+    /**
+     * Incremental code generator for a streaming compile. Atoms arrive through
+     * {@link #emit}, with names from symbols; whenever no forward jump is
+     * waiting for its label the buffered words are final and are handed to out
+     * in order, so only the code since the oldest unresolved jump is held in
+     * memory. Call {@link #finish()} after the last atom.
+     */
+    public CodeGenerator(IntConsumer out, SymbolTable symbols) {
+        this.out = out;
+        this.symbols = symbols;
+        Arrays.fill(labelAddrs, UNBOUND);
+        Arrays.fill(pendingChains, CodeBuffer.END);
+    }
 
-    private int addrOf(String name) {
-        if (name == null) return 0;
+    int addrOf(int id) {
+        if (id == NONE) return 0;
+        if (liveness != null) id = liveness.slotOf(id);
+        if (symbols.isLiteral(id)) {
+            // Literals of equal value, such as "5" and "5.0", share one cell
+            id = symbols.pooledLiteral(id);
+        }
+        ensureSymbol(id);
 
-        Integer addr = dataTable.get(name);
-        if (addr != null) {
-            return addr;
+        int addr = dataAddrs[id];
+        if (addr != 0) {
+            return addr - 1;
         }
 
         int newAddr = nextDataAddr++;
-        dataTable.put(name, newAddr);
+        dataAddrs[id] = newAddr + 1;
         return newAddr;
     }
 
-    public List<Integer> generate(List<Atom> atoms) {
-        // First Pass
-        for (Atom a : atoms) {
-            switch (a.op) {
-                case LBL -> handleLabel(a);
-                case MOV -> handleMov(a);
-                case ADD -> handleAdd(a);
-                case SUB -> handleSub(a);
-                case MUL -> handleMul(a);
-                case DIV -> handleDiv(a);
-                case TST -> handleTst(a);
-                case JMP -> handleJmp(a);
-                case HLT -> instructions.add(Instruction.hlt());
+    /**
+     * The instruction word applying opcode to operand id: a literal that fits
+     * is encoded inline, anything else is addressed in data memory.
+     */
+    int operandWord(int opcode, int cmp, int r, int id) {
+        if (id != NONE && symbols.isLiteral(id)) {
+            int value = symbols.literalValue(id);
+            if (Instruction.fitsImmediate(value)) return Instruction.encodeImmediate(opcode, cmp, r, value);
+        }
+        return Instruction.encode(opcode, cmp, r, addrOf(id));
+    }
+
+    private void ensureSymbol(int id) {
+        if (id < dataAddrs.length) return;
+        int old = dataAddrs.length;
+        int capacity = Math.max(id + 1, old * 2);
+        dataAddrs = Arrays.copyOf(dataAddrs, capacity);
+        labelAddrs = Arrays.copyOf(labelAddrs, capacity);
+        pendingChains = Arrays.copyOf(pendingChains, capacity);
+        Arrays.fill(labelAddrs, old, capacity, UNBOUND);
+        Arrays.fill(pendingChains, old, capacity, CodeBuffer.END);
+    }
+
+    /**
+     * Generates a whole program. Unlike atoms fed through {@link #emit}, temps
+     * whose live ranges do not overlap share a data cell, and a temp that is
+     * never read again is not stored (see {@link Liveness}).
+     */
+    public int[] generate(AtomBuffer atoms) {
+        symbols = atoms.symbols;
+        liveness = new Liveness(atoms);
+        for (int i = 0; i < atoms.size(); i++) {
+            AtomOp op = atoms.op(i);
+            if (liveness.isDeadStore(i)) {
+                // Only a division can still have an effect, by failing
+                if (op == AtomOp.DIV) handleArith(op, atoms.src1(i), atoms.src2(i), atoms.dest(i), false);
+                continue;
             }
+            emit(op, atoms.src1(i), atoms.src2(i), atoms.dest(i), atoms.cmp(i), atoms.label(i));
         }
+        finish();
+        return code.toArray();
+    }
 
-        // Second pass
-        patchJumps();
+    /**
+     * Like {@link #generate(AtomBuffer)}, but keeps values in registers
+     * 1-15 within each basic block; see {@link RegisterAllocator}.
+     */
+    public int[] generateWithRegisters(AtomBuffer atoms) {
+        symbols = atoms.symbols;
+        liveness = new Liveness(atoms);
+        new RegisterAllocator(this, atoms, liveness).run();
+        finish();
+        return code.toArray();
+    }
 
-        return instructions;
+    void emitWord(int word) {
+        code.add(word);
     }
 
-    private void patchJumps() {
-        for (PendingJump pj : pendingJumps) {
-            Integer targetAddr = labelTable.get(pj.label);
-            if (targetAddr == null) {
-                throw new IllegalStateException("Undefined label: " + pj.label);
-            }
-            int word = instructions.get(pj.instrIndex);
+    public int[] generate(List<Atom> atoms) {
+        return generate(AtomBuffer.of(atoms));
+    }
 
-            word &= ~(0xFFFFF << 12);
+    @Override
+    public void emit(AtomOp op, int src1, int src2, int dest, int cmp, int label) {
+        switch (op) {
+            case LBL -> handleLabel(label);
+            case MOV -> handleMov(src1, dest);
+            case ADD, SUB, MUL, DIV -> handleArith(op, src1, src2, dest, true);
+            case TST -> handleTst(src1, src2, cmp, label);
+            case JMP -> handleJmp(label);
+            case HLT -> code.add(Instruction.hlt());
+        }
+        if (out != null && pendingCount == 0) flush();
+    }
 
-            word |= (targetAddr & 0xFFFFF) << 12;
-            instructions.set(pj.instrIndex, word);
+    /**
+     * Fails on jumps to labels that were never defined, and in streaming mode
+     * hands over the remaining words.
+     */
+    public void finish() {
+        if (pendingCount > 0) {
+            for (int id = 0; id < pendingChains.length; id++) {
+                if (pendingChains[id] != CodeBuffer.END) {
+                    throw new IllegalStateException("Undefined label: " + symbols.name(id));
+                }
+            }
         }
+        if (out != null) flush();
     }
 
-    private void handleLabel(Atom a) {
-        if (a.label == null) {
-            throw new IllegalArgumentException("LBL atom with null label: " + a);
+    /**
+     * Data memory as the program expects it before its first instruction:
+     * every literal's cell holds its value (see {@link SymbolTable#literalValue}),
+     * everything else is 0.
+     */
+    public int[] initialMemory() {
+        int[] memory = new int[nextDataAddr];
+        for (int id = 0; id < dataAddrs.length; id++) {
+            if (dataAddrs[id] != 0 && symbols.isLiteral(id)) {
+                memory[dataAddrs[id] - 1] = symbols.literalValue(id);
+            }
         }
-        labelTable.put(a.label, instructions.size());
+        return memory;
     }
 
-    private void handleMov(Atom a) {
-        if (a.src1 == null || a.dest == null) {
-            throw new IllegalArgumentException("MOV needs src1 and dest: " + a);
+    /**
+     * Name of the symbol held in each data cell, indexed by address.
+     */
+    public String[] dataNames() {
+        int[] ids = dataSymbols();
+        String[] names = new String[ids.length];
+        for (int addr = 0; addr < ids.length; addr++) {
+            names[addr] = symbols.name(ids[addr]);
         }
+        return names;
+    }
 
-        int srcAddr  = addrOf(a.src1);
-        int destAddr = addrOf(a.dest);
+    /**
+     * Id of the symbol held in each data cell, indexed by address.
+     */
+    int[] dataSymbols() {
+        int[] ids = new int[nextDataAddr];
+        for (int id = 0; id < dataAddrs.length; id++) {
+            if (dataAddrs[id] != 0) ids[dataAddrs[id] - 1] = id;
+        }
+        return ids;
+    }
 
-        instructions.add(Instruction.lod(ACCUMULATOR, srcAddr));
-        instructions.add(Instruction.sto(ACCUMULATOR, destAddr));
+    /**
+     * Code address of label, or -1 if no LBL for it has been generated.
+     */
+    int labelAddress(int label) {
+        return label < labelAddrs.length ? labelAddrs[label] : UNBOUND;
     }
 
-    private void handleAdd(Atom a) {
-        if (a.src1 == null || a.src2 == null || a.dest == null) {
-            throw new IllegalArgumentException("ADD needs src1, src2, dest: " + a);
+    private void flush() {
+        for (int i = 0; i < code.size(); i++) {
+            out.accept(code.get(i));
         }
+        flushed += code.size();
+        code.clear();
+    }
 
-        int addr1 = addrOf(a.src1);
-        int addr2 = addrOf(a.src2);
-        int destAddr = addrOf(a.dest);
+    private int nextAddr() {
+        return flushed + code.size();
+    }
 
-        instructions.add(Instruction.lod(ACCUMULATOR, addr1));
-        instructions.add(Instruction.add(ACCUMULATOR, addr2));
-        instructions.add(Instruction.sto(ACCUMULATOR, destAddr));
+    private void patchJumps(int label, int targetAddr) {
+        pendingCount -= code.patch(pendingChains[label], targetAddr);
+        pendingChains[label] = CodeBuffer.END;
     }
 
-    private void handleSub(Atom a) {
-        if (a.src1 == null || a.src2 == null || a.dest == null) {
-            throw new IllegalArgumentException("SUB needs src1, src2, dest: " + a);
+    void handleLabel(int label) {
+        if (label == NONE) {
+            throw new IllegalArgumentException("LBL atom with null label");
         }
+        ensureSymbol(label);
+        int addr = nextAddr();
+        labelAddrs[label] = addr;
+        patchJumps(label, addr);
+    }
 
-        int addr1 = addrOf(a.src1);
-        int addr2 = addrOf(a.src2);
-        int destAddr = addrOf(a.dest);
-
-        instructions.add(Instruction.lod(ACCUMULATOR, addr1));
-        instructions.add(Instruction.sub(ACCUMULATOR, addr2));
-        instructions.add(Instruction.sto(ACCUMULATOR, destAddr));
+    void addJump(int label) {
+        addJump(Instruction.jmp(0), label);
     }
 
-    private void handleMul(Atom a) {
-        if (a.src1 == null || a.src2 == null || a.dest == null) {
-            throw new IllegalArgumentException("MUL needs src1, src2, dest: " + a);
+    /**
+     * Emits a JMP or BR word to label, addressed directly when the label is
+     * already bound and patched when its LBL arrives otherwise.
+     */
+    void addJump(int word, int label) {
+        ensureSymbol(label);
+        int targetAddr = labelAddrs[label];
+        if (targetAddr != UNBOUND) {
+            code.add(Instruction.withAddress(word, targetAddr));
+            return;
         }
+        pendingChains[label] = code.addForward(word, pendingChains[label]);
+        pendingCount++;
+    }
 
-        int addr1 = addrOf(a.src1);
-        int addr2 = addrOf(a.src2);
-        int destAddr = addrOf(a.dest);
+    private void handleMov(int src1, int dest) {
+        if (src1 == NONE || dest == NONE) {
+            throw new IllegalArgumentException("MOV needs src1 and dest: " + describe(AtomOp.MOV, src1, NONE, dest));
+        }
 
-        instructions.add(Instruction.lod(ACCUMULATOR, addr1));
-        instructions.add(Instruction.mul(ACCUMULATOR, addr2));
-        instructions.add(Instruction.sto(ACCUMULATOR, destAddr));
+        code.add(operandWord(Instruction.OPC_LOD, 0, ACCUMULATOR, src1));
+        code.add(Instruction.sto(ACCUMULATOR, addrOf(dest)));
     }
 
-    private void handleDiv(Atom a) {
-        if (a.src1 == null || a.src2 == null || a.dest == null) {
-            throw new IllegalArgumentException("DIV needs src1, src2, dest: " + a);
+    private void handleArith(AtomOp op, int src1, int src2, int dest, boolean store) {
+        if (src1 == NONE || src2 == NONE || dest == NONE) {
+            throw new IllegalArgumentException(op + " needs src1, src2, dest: " + describe(op, src1, src2, dest));
         }
 
-        int addr1 = addrOf(a.src1);
-        int addr2 = addrOf(a.src2);
-        int destAddr = addrOf(a.dest);
-
-        instructions.add(Instruction.lod(ACCUMULATOR, addr1));
-        instructions.add(Instruction.div(ACCUMULATOR, addr2));
-        instructions.add(Instruction.sto(ACCUMULATOR, destAddr));
+        code.add(operandWord(Instruction.OPC_LOD, 0, ACCUMULATOR, src1));
+        code.add(operandWord(arithOpcode(op), 0, ACCUMULATOR, src2));
+        if (store) code.add(Instruction.sto(ACCUMULATOR, addrOf(dest)));
     }
 
-    private void handleTst(Atom a) {
-        if (a.src1 == null || a.src2 == null || a.cmp == null || a.label == null) {
-            throw new IllegalArgumentException("TST needs src1, src2, cmp, label: " + a);
+    private void handleTst(int src1, int src2, int cmp, int label) {
+        if (src1 == NONE || src2 == NONE || cmp == AtomBuffer.NO_CMP || label == NONE) {
+            throw new IllegalArgumentException("TST needs src1, src2, cmp, label: "
+                    + AtomBuffer.toAtom(symbols, AtomOp.TST, src1, src2, NONE, cmp, label));
         }
 
-        int addr1 = addrOf(a.src1);
-        int addr2 = addrOf(a.src2);
-
-        instructions.add(Instruction.lod(ACCUMULATOR, addr1));
-        instructions.add(Instruction.cmp(ACCUMULATOR, a.cmp, addr2));
+        if (cmp == 0) {
+            addJump(label);
+            return;
+        }
+        code.add(operandWord(Instruction.OPC_LOD, 0, ACCUMULATOR, src1));
+        code.add(operandWord(Instruction.OPC_LOD, 0, OPERAND, src2));
+        addJump(Instruction.br(cmp, ACCUMULATOR, OPERAND, 0), label);
+    }
 
-        int jmpIndex = instructions.size();
-        instructions.add(Instruction.jmp(0));
-        pendingJumps.add(new PendingJump(jmpIndex, a.label));
+    static int arithOpcode(AtomOp op) {
+        return switch (op) {
+            case ADD -> Instruction.OPC_ADD;
+            case SUB -> Instruction.OPC_SUB;
+            case MUL -> Instruction.OPC_MUL;
+            case DIV -> Instruction.OPC_DIV;
+            default -> throw new IllegalArgumentException("Not an arithmetic op: " + op);
+        };
     }
 
-    private void handleJmp(Atom a) {
-        if (a.label == null) {
-            throw new IllegalArgumentException("JMP needs target label: " + a);
+    private void handleJmp(int label) {
+        if (label == NONE) {
+            throw new IllegalArgumentException("JMP needs target label");
         }
-        int jmpIndex = instructions.size();
-        instructions.add(Instruction.jmp(0));
-        pendingJumps.add(new PendingJump(jmpIndex, a.label));
+        addJump(label);
+    }
+
+    private Atom describe(AtomOp op, int src1, int src2, int dest) {
+        return AtomBuffer.toAtom(symbols, op, src1, src2, dest, AtomBuffer.NO_CMP, NONE);
     }
 }
@@ -0,0 +1,305 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps a source file compiled to atoms across text edits.
+ *
+ * The lexer always returns to START at a line terminator, so an edit only
+ * re-lexes the lines it touches. Parsing then restarts at the top-level
+ * statement just before the change and stops as soon as it lands back on an
+ * old statement boundary past the change; only the atoms of the statements in
+ * between are replaced. Temps and labels in re-parsed statements are numbered
+ * past everything handed out so far, so they never collide with the atoms that
+ * were kept (a full recompile may number them differently).
+ */
+public class CompilationSession {
+    private static final int EOF = TokenKind.EOF.code();
+
+    private static final class Tok {
+        final int kind;
+        final int id;
+        final String text;
+
+        Tok(int kind, int id, String text) {
+            this.kind = kind;
+            this.id = id;
+            this.text = text;
+        }
+    }
+
+    private static final class Stmt {
+        int tokStart;
+        int tokEnd;
+        final List<Atom> atoms;
+        // Set on the last statement when parsing stopped there with a syntax error
+        final boolean failed;
+
+        Stmt(int tokStart, int tokEnd, List<Atom> atoms, boolean failed) {
+            this.tokStart = tokStart;
+            this.tokEnd = tokEnd;
+            this.atoms = atoms;
+            this.failed = failed;
+        }
+    }
+
+    private final StringBuilder text;
+
+    // Lines are the runs between single terminator characters; "\r\n" just
+    // yields an empty line, which lexes to nothing.
+    private int[] lineStarts = new int[16];
+    private int[] lineTokens = new int[16];
+    private int lineCount = 0;
+
+    private final ArrayList<Tok> tokens = new ArrayList<>();
+    private final ArrayList<Stmt> stmts = new ArrayList<>();
+    private final ArrayList<Atom> atoms = new ArrayList<>();
+
+    // Shared by every re-parse, so temps and labels keep counting up
+    private final SymbolTable symbols = new SymbolTable();
+    private String error = null;
+
+    public CompilationSession(String source) {
+        text = new StringBuilder(source);
+        spliceLines(0, 0, relexLines(0, text.length(), 0), 0, 0);
+        reparse(0, 0, tokens.size());
+    }
+
+    public String text() {
+        return text.toString();
+    }
+
+    public List<Atom> atoms() {
+        return Collections.unmodifiableList(atoms);
+    }
+
+    /**
+     * The syntax error of the current text, or null if it parses.
+     */
+    public String error() {
+        return error;
+    }
+
+    public int tokenCount() {
+        return tokens.size();
+    }
+
+    public Token token(int i) {
+        Tok t = tokens.get(i);
+        return new Token(TokenKind.of(t.kind).name(), t.text);
+    }
+
+    /**
+     * Replaces removedLength chars at offset with inserted and brings tokens and atoms up to date.
+     */
+    public void edit(int offset, int removedLength, String inserted) {
+        if (offset < 0 || removedLength < 0 || offset + removedLength > text.length()) {
+            throw new IndexOutOfBoundsException("Edit [" + offset + ", " + (offset + removedLength)
+                    + ") outside source of length " + text.length());
+        }
+
+        // Lines overlapping the edit, including the one a removed terminator merges into
+        int first = lineAt(offset);
+        int last = lineAt(offset + removedLength);
+        int regionStart = lineStarts[first];
+        int oldRegionEnd = last + 1 < lineCount ? lineStarts[last + 1] : text.length();
+        int delta = inserted.length() - removedLength;
+
+        text.replace(offset, offset + removedLength, inserted);
+
+        // Re-lex just those lines and splice their tokens in
+        int tokStart = lineTokens[first];
+        int oldTokEnd = last + 1 < lineCount ? lineTokens[last + 1] : tokens.size();
+        tokens.subList(tokStart, oldTokEnd).clear();
+        int before = tokens.size();
+        int[] lexed = relexLines(regionStart, oldRegionEnd + delta, tokStart);
+        int newTokEnd = tokStart + tokens.size() - before;
+        spliceLines(first, last + 1, lexed, delta, newTokEnd - oldTokEnd);
+
+        reparse(tokStart, oldTokEnd, newTokEnd);
+    }
+
+    private int lineAt(int offset) {
+        int lo = 0;
+        int hi = lineCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid] <= offset) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Lexes the lines in text[from, to) and inserts their tokens at tokens[at].
+     * The region ends just past a line terminator, or at the end of the text,
+     * where the last line needs no terminator. Returns the lines' start offsets
+     * followed by the index of each line's first token.
+     */
+    private int[] relexLines(int from, int to, int at) {
+        List<Integer> starts = new ArrayList<>();
+        List<Tok> lexed = new ArrayList<>();
+        List<Integer> firstTokens = new ArrayList<>();
+        int lineStart = from;
+        for (int i = from; i < to; i++) {
+            if (TokenStream.isLineTerminator(text.charAt(i))) {
+                starts.add(lineStart);
+                firstTokens.add(at + lexed.size());
+                lexLine(text.substring(lineStart, i), lexed);
+                lineStart = i + 1;
+            }
+        }
+        if (to == text.length()) {
+            starts.add(lineStart);
+            firstTokens.add(at + lexed.size());
+            lexLine(text.substring(lineStart, to), lexed);
+        }
+        tokens.addAll(at, lexed);
+
+        int n = starts.size();
+        int[] result = new int[n * 2];
+        for (int i = 0; i < n; i++) {
+            result[i] = starts.get(i);
+            result[n + i] = firstTokens.get(i);
+        }
+        return result;
+    }
+
+    private static void lexLine(String line, List<Tok> out) {
+        if (line.isEmpty()) return;
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        TokenBuffer lexed = TokenStream.chunk(ByteBuffer.wrap(bytes), 0, bytes.length).drain();
+        for (int i = 0; i < lexed.size(); i++) {
+            out.add(new Tok(lexed.kind(i), lexed.id(i), lexed.text(i)));
+        }
+    }
+
+    /**
+     * Replaces lines [from, to) with the re-lexed ones and shifts the lines after them.
+     */
+    private void spliceLines(int from, int to, int[] lexed, int charDelta, int tokDelta) {
+        int newLines = lexed.length / 2;
+        int tail = lineCount - to;
+        int newCount = from + newLines + tail;
+        if (newCount > lineStarts.length) {
+            int capacity = Math.max(newCount, lineStarts.length * 2);
+            lineStarts = Arrays.copyOf(lineStarts, capacity);
+            lineTokens = Arrays.copyOf(lineTokens, capacity);
+        }
+        System.arraycopy(lineStarts, to, lineStarts, from + newLines, tail);
+        System.arraycopy(lineTokens, to, lineTokens, from + newLines, tail);
+        System.arraycopy(lexed, 0, lineStarts, from, newLines);
+        System.arraycopy(lexed, newLines, lineTokens, from, newLines);
+        for (int i = from + newLines; i < newCount; i++) {
+            lineStarts[i] += charDelta;
+            lineTokens[i] += tokDelta;
+        }
+        lineCount = newCount;
+    }
+
+    /**
+     * Re-parses top-level statements around the tokens that changed from
+     * [tokStart, oldTokEnd) to [tokStart, newTokEnd), starting one statement
+     * early (its trailing lookahead may have changed) and stopping at the first
+     * old statement boundary past the change.
+     */
+    private void reparse(int tokStart, int oldTokEnd, int newTokEnd) {
+        int tokDelta = newTokEnd - oldTokEnd;
+
+        int k = 0;
+        while (k < stmts.size() && stmts.get(k).tokEnd <= tokStart) k++;
+        k = Math.max(0, k - 1);
+        int pos = k < stmts.size() ? stmts.get(k).tokStart : 0;
+
+        Cursor cursor = new Cursor(pos);
+        List<Stmt> fresh = new ArrayList<>();
+        int resync = stmts.size();
+        int j = k;
+        String failure = null;
+        try {
+            while (true) {
+                if (cursor.pos >= newTokEnd) {
+                    while (j < stmts.size() && (stmts.get(j).tokStart < oldTokEnd
+                            || stmts.get(j).tokStart + tokDelta < cursor.pos)) j++;
+                    if (j < stmts.size() && stmts.get(j).tokStart + tokDelta == cursor.pos && !stmts.get(j).failed) {
+                        resync = j;
+                        break;
+                    }
+                }
+
+                int start = cursor.pos;
+                List<Atom> stmtAtoms = new ArrayList<>();
+                Parser parser = new Parser(cursor, (op, src1, src2, dest, cmp, label) ->
+                        stmtAtoms.add(AtomBuffer.toAtom(symbols, op, src1, src2, dest, cmp, label)), symbols);
+                try {
+                    if (!parser.parseStatement()) break;
+                } catch (RuntimeException e) {
+                    // Keep what the statement emitted before failing, as parseProgram() does
+                    fresh.add(new Stmt(start, cursor.pos, stmtAtoms, true));
+                    throw e;
+                }
+                fresh.add(new Stmt(start, cursor.pos, stmtAtoms, false));
+            }
+            if (resync == stmts.size() && cursor.kind() != EOF) {
+                fresh.add(new Stmt(cursor.pos, cursor.pos, new ArrayList<>(), true));
+                throw new RuntimeException("Unexpected tokens after end of program: " + cursor.token());
+            }
+        } catch (RuntimeException e) {
+            failure = e.getMessage();
+            resync = stmts.size();
+        }
+        // After a resync the old error, if any, belongs to a statement that was kept
+        if (resync == stmts.size()) error = failure;
+
+        int atomStart = 0;
+        for (int i = 0; i < k; i++) atomStart += stmts.get(i).atoms.size();
+        int atomEnd = atomStart;
+        for (int i = k; i < resync; i++) atomEnd += stmts.get(i).atoms.size();
+
+        List<Atom> freshAtoms = new ArrayList<>();
+        for (Stmt stmt : fresh) freshAtoms.addAll(stmt.atoms);
+        List<Atom> replacedAtoms = atoms.subList(atomStart, atomEnd);
+        replacedAtoms.clear();
+        replacedAtoms.addAll(freshAtoms);
+
+        List<Stmt> replacedStmts = stmts.subList(k, resync);
+        replacedStmts.clear();
+        replacedStmts.addAll(fresh);
+        for (int i = k + fresh.size(); i < stmts.size(); i++) {
+            Stmt stmt = stmts.get(i);
+            stmt.tokStart += tokDelta;
+            stmt.tokEnd += tokDelta;
+        }
+    }
+
+    private final class Cursor implements TokenSource {
+        int pos;
+
+        Cursor(int pos) {
+            this.pos = pos;
+        }
+
+        @Override
+        public int kind() {
+            return pos < tokens.size() ? tokens.get(pos).kind : EOF;
+        }
+
+        @Override
+        public int id() {
+            return pos < tokens.size() ? tokens.get(pos).id : Lexeme.NONE;
+        }
+
+        @Override
+        public String text() {
+            return pos < tokens.size() ? tokens.get(pos).text : "EOF";
+        }
+
+        @Override
+        public void advance() {
+            pos++;
+        }
+    }
+}
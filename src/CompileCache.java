@@ -0,0 +1,285 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiled programs on disk, keyed by what went into compiling them.
+ *
+ * The key is a SHA-256 of {@link #COMPILER_VERSION}, the options and the
+ * source bytes, so an entry never goes stale: a changed source or compiler
+ * just looks up a different key. Each entry is one file named by its key,
+ * holding the final code, the data memory it starts from and the names of
+ * its cells, and optionally the atom stream the code came from.
+ *
+ * Several compilers, in this JVM or others, may share a directory. An entry
+ * is written to a temp file and moved into place, so readers see all of it
+ * or nothing, and one that cannot be read for any reason is a miss. A hit
+ * touches the file's modified time; when the directory grows past its size
+ * bound, the entries least recently used are deleted until it is back under
+ * {@link #LOW_WATER} of it.
+ */
+public final class CompileCache {
+    /** Bump whenever the same source and options may compile to different code. */
+    public static final String COMPILER_VERSION = "1";
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    private static final int MAGIC = 0x434A4343; // "CJCC"
+    private static final String ENTRY_SUFFIX = ".cjc";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // An op byte and five presence flags
+    private static final int ATOM_MIN_BYTES = 6;
+    private static final double LOW_WATER = 0.9;
+    // A temp file this old was left by a compiler that died mid-write
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * A cached compilation; atoms is null when they were not stored.
+     */
+    public record Entry(int[] code, int[] memory, String[] dataNames, List<Atom> atoms) {}
+
+    private final Path dir;
+    private final long maxBytes;
+    // Bytes in the directory as of the last scan plus what this cache wrote since; -1 before the first scan
+    private final AtomicLong size = new AtomicLong(-1);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CompileCache(Path dir, long maxBytes) throws IOException {
+        if (maxBytes < 1) throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+    }
+
+    public CompileCache(Path dir) throws IOException {
+        this(dir, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * The key of source compiled with the given options, as for the -O and
+     * --unroll options of {@link Main}.
+     */
+    public static String key(byte[] source, boolean optimize, int unroll) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+        String options = COMPILER_VERSION + ";O=" + optimize + ";unroll=" + unroll + ";";
+        digest.update(options.getBytes(StandardCharsets.UTF_8));
+        digest.update(source);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * The entry stored under key, or null if there is none that can be read.
+     */
+    public Entry get(String key) {
+        Path file = dir.resolve(key + ENTRY_SUFFIX);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+            Entry entry = read(in, key);
+            touch(file);
+            hits.incrementAndGet();
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            // Missing, half-evicted or corrupt: compile again and overwrite it
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores entry under key, replacing any entry there. Failing to write is
+     * not an error, since the cache only saves time.
+     */
+    public void put(String key, Entry entry) {
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(dir, key, TEMP_SUFFIX);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                write(out, key, entry);
+            }
+            long bytes = Files.size(temp);
+            Path file = dir.resolve(key + ENTRY_SUFFIX);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+            if (size.get() < 0) scan();
+            if (size.addAndGet(bytes) > maxBytes) evict();
+        } catch (IOException e) {
+            // Leave the cache as it was
+        } finally {
+            if (temp != null) deleteQuietly(temp);
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    private static void write(DataOutputStream out, String key, Entry entry) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeUTF(key);
+        writeInts(out, entry.code());
+        writeInts(out, entry.memory());
+        out.writeInt(entry.dataNames().length);
+        for (String name : entry.dataNames()) writeString(out, name);
+        List<Atom> atoms = entry.atoms();
+        out.writeInt(atoms == null ? -1 : atoms.size());
+        if (atoms != null) {
+            for (Atom atom : atoms) {
+                out.writeByte(atom.op.ordinal());
+                writeString(out, atom.src1);
+                writeString(out, atom.src2);
+                writeString(out, atom.dest);
+                out.writeBoolean(atom.cmp != null);
+                if (atom.cmp != null) out.writeInt(atom.cmp);
+                writeString(out, atom.label);
+            }
+        }
+    }
+
+    private static Entry read(DataInputStream in, String key) throws IOException {
+        if (in.readInt() != MAGIC || !in.readUTF().equals(key)) throw new IOException("Not an entry for " + key);
+        int[] code = readInts(in);
+        int[] memory = readInts(in);
+        String[] dataNames = new String[checked(in, in.readInt(), 1)];
+        for (int i = 0; i < dataNames.length; i++) dataNames[i] = readString(in);
+        int atomCount = in.readInt();
+        List<Atom> atoms = null;
+        if (atomCount != -1) {
+            atoms = new ArrayList<>(checked(in, atomCount, ATOM_MIN_BYTES));
+            for (int i = 0; i < atomCount; i++) {
+                AtomOp op = AtomOp.VALUES[in.readUnsignedByte()];
+                String src1 = readString(in);
+                String src2 = readString(in);
+                String dest = readString(in);
+                Integer cmp = in.readBoolean() ? in.readInt() : null;
+                atoms.add(new Atom(op, src1, src2, dest, cmp, readString(in)));
+            }
+        }
+        if (in.read() != -1) throw new IOException("Trailing bytes in entry " + key);
+        return new Entry(code, memory, dataNames, atoms);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int v : values) out.writeInt(v);
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[checked(in, in.readInt(), 4)];
+        for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+        return values;
+    }
+
+    /**
+     * A count of items that take at least minBytes each, checked against the
+     * rest of the entry so that a corrupt count cannot allocate past it. The
+     * stream reads from a byte array, which knows exactly what is left.
+     */
+    private static int checked(DataInputStream in, int count, int minBytes) throws IOException {
+        if (count < 0 || (long) count * minBytes > in.available()) throw new IOException("Corrupt count " + count);
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Evicted meanwhile, or read-only: only the eviction order suffers
+        }
+    }
+
+    private record Candidate(Path file, long lastUsed, long bytes) {}
+
+    private List<Candidate> entries() throws IOException {
+        List<Candidate> entries = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    long lastUsed = attrs.lastModifiedTime().toMillis();
+                    if (name.endsWith(ENTRY_SUFFIX)) {
+                        entries.add(new Candidate(file, lastUsed, attrs.size()));
+                    } else if (name.endsWith(TEMP_SUFFIX) && now - lastUsed > STALE_TEMP_MILLIS) {
+                        deleteQuietly(file);
+                    }
+                } catch (NoSuchFileException e) {
+                    // Deleted by another compiler while listing
+                }
+            }
+        }
+        return entries;
+    }
+
+    private synchronized void scan() throws IOException {
+        if (size.get() >= 0) return;
+        long total = 0;
+        for (Candidate c : entries()) total += c.bytes();
+        size.set(total);
+    }
+
+    /**
+     * Deletes the least recently used entries until the directory is under
+     * the low-water mark. Rescans first, since other compilers write here too.
+     */
+    private synchronized void evict() throws IOException {
+        if (size.get() <= maxBytes) return;
+        Candidate[] entries = entries().toArray(new Candidate[0]);
+        Arrays.sort(entries, Comparator.comparingLong(Candidate::lastUsed));
+        long total = 0;
+        for (Candidate c : entries) total += c.bytes();
+        long target = (long) (maxBytes * LOW_WATER);
+        for (int i = 0; i < entries.length && total > target; i++) {
+            if (deleteQuietly(entries[i].file())) total -= entries[i].bytes();
+        }
+        size.set(total);
+    }
+
+    private static boolean deleteQuietly(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
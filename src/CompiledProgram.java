@@ -0,0 +1,6 @@
+/**
+ * A program translated for direct execution. Runs update memory in place.
+ */
+public interface CompiledProgram {
+    void run(int[] memory);
+}
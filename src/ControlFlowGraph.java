@@ -0,0 +1,303 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Basic blocks of an atom stream and the edges between them.
+ *
+ * A block starts at a label, at the first atom and after every JMP, TST and
+ * HLT, and ends in one of those or by falling into the next block. Blocks
+ * refer to their atoms by position in the buffer the graph was built from;
+ * only the edges and the layout order change when the graph is
+ * {@link #simplify() simplified}, and {@link #toAtoms()} writes the result
+ * back out as atoms, with labels and jumps only where the layout needs them.
+ */
+public final class ControlFlowGraph {
+    private static final int NONE = SymbolTable.NONE;
+    private static final int NO_CMP = AtomBuffer.NO_CMP;
+
+    public static final class Block {
+        public final int index;
+        // Atoms [start, end) in the source buffer; [bodyStart, bodyEnd) without label and exit
+        public final int start;
+        public final int end;
+        final int bodyStart;
+        final int bodyEnd;
+        // JMP, TST, HLT, or null when the block falls through
+        AtomOp exit;
+        Block taken;
+        Block next;
+        int label;
+        int predecessors;
+
+        Block(int index, int start, int end, int bodyStart, int bodyEnd) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.bodyStart = bodyStart;
+            this.bodyEnd = bodyEnd;
+        }
+
+        public boolean isEmpty() {
+            return bodyStart == bodyEnd;
+        }
+
+        public AtomOp exit() {
+            return exit;
+        }
+
+        /**
+         * Where control goes after the block: the jump or test target first,
+         * then the fall-through block. Null entries are left out.
+         */
+        public List<Block> successors() {
+            List<Block> result = new ArrayList<>(2);
+            if (taken != null) result.add(taken);
+            if (next != null && next != taken) result.add(next);
+            return result;
+        }
+    }
+
+    private final AtomBuffer atoms;
+    private final Block[] blocks;
+    private List<Block> layout;
+
+    private ControlFlowGraph(AtomBuffer atoms, Block[] blocks) {
+        this.atoms = atoms;
+        this.blocks = blocks;
+        this.layout = new ArrayList<>(Arrays.asList(blocks));
+    }
+
+    public static ControlFlowGraph build(AtomBuffer atoms) {
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < atoms.size(); i++) {
+            if (i == 0 || atoms.op(i) == AtomOp.LBL || endsBlock(atoms.op(i - 1))) starts.add(i);
+        }
+
+        Block[] blocks = new Block[starts.size()];
+        int[] labelBlock = new int[atoms.symbols.size()];
+        Arrays.fill(labelBlock, -1);
+        for (int b = 0; b < blocks.length; b++) {
+            int start = starts.get(b);
+            int end = b + 1 < blocks.length ? starts.get(b + 1) : atoms.size();
+            boolean labeled = atoms.op(start) == AtomOp.LBL;
+            int bodyStart = labeled ? start + 1 : start;
+            boolean exits = end - 1 >= bodyStart && endsBlock(atoms.op(end - 1));
+            Block block = new Block(b, start, end, bodyStart, exits ? end - 1 : end);
+            if (exits) block.exit = atoms.op(end - 1);
+            if (labeled) {
+                block.label = atoms.label(start);
+                labelBlock[block.label] = b;
+            }
+            blocks[b] = block;
+        }
+
+        for (Block block : blocks) {
+            Block following = block.index + 1 < blocks.length ? blocks[block.index + 1] : null;
+            if (block.exit == AtomOp.JMP || block.exit == AtomOp.TST) {
+                int label = atoms.label(block.end - 1);
+                if (labelBlock[label] < 0) {
+                    throw new IllegalStateException("Undefined label: " + atoms.symbols.name(label));
+                }
+                block.taken = blocks[labelBlock[label]];
+                // A test that always passes is a jump
+                if (block.exit == AtomOp.TST && atoms.cmp(block.end - 1) == 0) block.exit = AtomOp.JMP;
+            }
+            if (block.exit == null || block.exit == AtomOp.TST) block.next = following;
+        }
+        ControlFlowGraph graph = new ControlFlowGraph(atoms, blocks);
+        graph.countPredecessors();
+        return graph;
+    }
+
+    private static boolean endsBlock(AtomOp op) {
+        return op == AtomOp.JMP || op == AtomOp.TST || op == AtomOp.HLT;
+    }
+
+    /**
+     * All blocks in source order, including any that simplifying has cut off.
+     */
+    public List<Block> blocks() {
+        return Arrays.asList(blocks);
+    }
+
+    /**
+     * The blocks that will be written out, in order.
+     */
+    public List<Block> layout() {
+        return layout;
+    }
+
+    public AtomBuffer source() {
+        return atoms;
+    }
+
+    /**
+     * Threads jumps through empty blocks, drops blocks that cannot be
+     * reached from the first one, and lays the rest out so that each block
+     * is followed by a successor where possible.
+     */
+    public ControlFlowGraph simplify() {
+        threadJumps();
+        removeUnreachable();
+        countPredecessors();
+        layOut();
+        return this;
+    }
+
+    /**
+     * Points every edge that lands on an empty block which only passes
+     * control on at wherever that leads, and turns a test whose two
+     * outcomes now go to the same place into a plain fall-through.
+     */
+    private void threadJumps() {
+        for (Block block : blocks) {
+            block.taken = skipEmpty(block.taken);
+            block.next = skipEmpty(block.next);
+            if (block.exit == AtomOp.TST && block.taken == block.next) {
+                block.exit = null;
+                block.taken = null;
+            }
+        }
+    }
+
+    private Block skipEmpty(Block target) {
+        // A cycle of empty blocks is an infinite loop and must stay one
+        for (int steps = 0; target != null && target.isEmpty() && steps < blocks.length; steps++) {
+            if (target.exit == AtomOp.JMP) target = target.taken;
+            else if (target.exit == null && target.next != null) target = target.next;
+            else break;
+        }
+        return target;
+    }
+
+    private void removeUnreachable() {
+        if (blocks.length == 0) return;
+        boolean[] reached = new boolean[blocks.length];
+        List<Block> work = new ArrayList<>();
+        work.add(blocks[0]);
+        reached[0] = true;
+        while (!work.isEmpty()) {
+            Block block = work.remove(work.size() - 1);
+            for (Block s : block.successors()) {
+                if (!reached[s.index]) {
+                    reached[s.index] = true;
+                    work.add(s);
+                }
+            }
+        }
+        layout.removeIf(block -> !reached[block.index]);
+    }
+
+    private void countPredecessors() {
+        for (Block block : blocks) block.predecessors = 0;
+        for (Block block : layout) {
+            for (Block s : block.successors()) s.predecessors++;
+        }
+    }
+
+    /**
+     * Builds chains in source order: after a block comes its fall-through
+     * block, or the target of its jump when nothing else jumps there, or for
+     * a test whose fall-through block is taken already its target, which
+     * {@link #toAtoms()} then reaches by the inverted test.
+     */
+    private void layOut() {
+        boolean[] placed = new boolean[blocks.length];
+        List<Block> order = new ArrayList<>(layout.size());
+        for (Block head : layout) {
+            Block block = head;
+            while (block != null && !placed[block.index]) {
+                placed[block.index] = true;
+                order.add(block);
+                block = follower(block, placed);
+            }
+        }
+        layout = order;
+    }
+
+    private static Block follower(Block block, boolean[] placed) {
+        if (block.next != null && !placed[block.next.index]) return block.next;
+        if (block.exit == AtomOp.JMP && block.taken.predecessors == 1) return block.taken;
+        if (block.exit == AtomOp.TST && !placed[block.taken.index]) return block.taken;
+        return null;
+    }
+
+    /**
+     * Writes the layout out as atoms. Blocks keep their labels, get a new
+     * one if something now jumps to a block that had none, and lose it if
+     * nothing jumps there any more.
+     */
+    public AtomBuffer toAtoms() {
+        SymbolTable symbols = atoms.symbols;
+        AtomBuffer raw = new AtomBuffer(symbols);
+        int count = layout.size();
+        // Fall-through blocks laid out elsewhere are jumped to, possibly backwards
+        for (int k = 0; k < count; k++) {
+            Block next = layout.get(k).next;
+            if (next != null && (k + 1 == count || layout.get(k + 1) != next)) labelOf(next);
+        }
+
+        for (int k = 0; k < count; k++) {
+            Block block = layout.get(k);
+            Block after = k + 1 < count ? layout.get(k + 1) : null;
+            if (block.label != NONE) raw.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, block.label);
+            for (int i = block.bodyStart; i < block.bodyEnd; i++) {
+                raw.emit(atoms.op(i), atoms.src1(i), atoms.src2(i), atoms.dest(i), atoms.cmp(i), atoms.label(i));
+            }
+
+            if (block.exit == AtomOp.HLT) {
+                raw.emit(AtomOp.HLT, NONE, NONE, NONE, NO_CMP, NONE);
+                continue;
+            }
+            if (block.exit == AtomOp.TST) {
+                int test = block.end - 1;
+                if (block.taken == after) {
+                    raw.emit(AtomOp.TST, atoms.src1(test), atoms.src2(test), NONE, invert(atoms.cmp(test)),
+                            labelOf(block.next));
+                    continue;
+                }
+                raw.emit(AtomOp.TST, atoms.src1(test), atoms.src2(test), NONE, atoms.cmp(test), labelOf(block.taken));
+            }
+            Block target = block.exit == AtomOp.JMP ? block.taken : block.next;
+            if (target == after) continue;
+            if (target != null) {
+                raw.emit(AtomOp.JMP, NONE, NONE, NONE, NO_CMP, labelOf(target));
+            } else if (after != null) {
+                // The program ended here; it no longer does by falling off the end
+                raw.emit(AtomOp.HLT, NONE, NONE, NONE, NO_CMP, NONE);
+            }
+        }
+        return dropUnusedLabels(raw);
+    }
+
+    private int labelOf(Block block) {
+        if (block.label == NONE) block.label = atoms.symbols.newLabel();
+        return block.label;
+    }
+
+    private static int invert(int cmp) {
+        return switch (cmp) {
+            case 1 -> 6;
+            case 2 -> 5;
+            case 3 -> 4;
+            case 4 -> 3;
+            case 5 -> 2;
+            case 6 -> 1;
+            default -> throw new IllegalArgumentException("Cannot invert compare code " + cmp);
+        };
+    }
+
+    private static AtomBuffer dropUnusedLabels(AtomBuffer atoms) {
+        boolean[] used = new boolean[atoms.symbols.size()];
+        for (int i = 0; i < atoms.size(); i++) {
+            if (atoms.op(i) == AtomOp.JMP || atoms.op(i) == AtomOp.TST) used[atoms.label(i)] = true;
+        }
+        AtomBuffer out = new AtomBuffer(atoms.symbols);
+        for (int i = 0; i < atoms.size(); i++) {
+            if (atoms.op(i) == AtomOp.LBL && !used[atoms.label(i)]) continue;
+            out.emit(atoms.op(i), atoms.src1(i), atoms.src2(i), atoms.dest(i), atoms.cmp(i), atoms.label(i));
+        }
+        return out;
+    }
+}
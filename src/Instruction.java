@@ -9,19 +9,120 @@ public class Instruction {
     public static final int OPC_LOD = 7;
     public static final int OPC_STO = 8;
     public static final int OPC_HLT = 9;
+    /**
+     * Opcodes 10-15 are the compare-and-branch BR for compare codes 1-6: jump
+     * to the address if register cmp the register in bits 4-7, which BR uses
+     * in place of the immediate flag and compare code.
+     */
+    public static final int OPC_BR = 10;
+
+    /**
+     * Bit 4: the 20-bit field holds the operand itself, in two's complement,
+     * rather than its address. Only ADD, SUB, MUL, DIV, LOD and CMP take it.
+     */
+    public static final int IMMEDIATE = 1 << 4;
+    public static final int MIN_IMMEDIATE = -(1 << 19);
+    public static final int MAX_IMMEDIATE = (1 << 19) - 1;
 
     private Instruction() {}
 
     public static int encode(int opcode, int cmp, int r, int address) {
         int word = 0;
         word |= (opcode & 0xF);
-        word |= (0 << 4);
         word |= (cmp & 0x7) << 5;
         word |= (r   & 0xF) << 8;
         word |= (address & 0xFFFFF) << 12;
         return word;
     }
 
+    /**
+     * Same as {@link #encode}, with value as an immediate operand.
+     */
+    public static int encodeImmediate(int opcode, int cmp, int r, int value) {
+        if (!fitsImmediate(value)) {
+            throw new IllegalArgumentException("Immediate out of range: " + value);
+        }
+        if (!takesImmediate(opcode)) {
+            throw new IllegalArgumentException("Opcode " + opcode + " takes no immediate");
+        }
+        return encode(opcode, cmp, r, value) | IMMEDIATE;
+    }
+
+    public static boolean fitsImmediate(int value) {
+        return value >= MIN_IMMEDIATE && value <= MAX_IMMEDIATE;
+    }
+
+    public static boolean takesImmediate(int opcode) {
+        return opcode >= OPC_ADD && opcode <= OPC_DIV || opcode == OPC_CMP || opcode == OPC_LOD;
+    }
+
+    public static int opcode(int word) {
+        return word & 0xF;
+    }
+
+    public static int cmpCode(int word) {
+        return (word >>> 5) & 0x7;
+    }
+
+    public static int register(int word) {
+        return (word >>> 8) & 0xF;
+    }
+
+    public static int address(int word) {
+        return word >>> 12;
+    }
+
+    /**
+     * True for the words whose address field is a data address: memory
+     * operands of arithmetic, LOD, CMP, and STO.
+     */
+    public static boolean addressesData(int word) {
+        int opcode = opcode(word);
+        if (opcode == OPC_STO) return true;
+        return takesImmediate(opcode) && !isImmediate(word);
+    }
+
+    public static boolean isBranch(int opcode) {
+        return opcode >= OPC_BR;
+    }
+
+    /**
+     * True for the words that transfer control to their address: JMP and BR.
+     */
+    public static boolean isJump(int word) {
+        int opcode = opcode(word);
+        return opcode == OPC_JMP || isBranch(opcode);
+    }
+
+    /**
+     * The compare code of a BR word.
+     */
+    public static int branchCmp(int word) {
+        return opcode(word) - OPC_BR + 1;
+    }
+
+    /**
+     * The register a BR word compares against.
+     */
+    public static int branchRegister(int word) {
+        return (word >>> 4) & 0xF;
+    }
+
+    public static boolean isImmediate(int word) {
+        return (word & IMMEDIATE) != 0;
+    }
+
+    /**
+     * The operand of an immediate word, sign-extended.
+     */
+    public static int immediate(int word) {
+        return word >> 12;
+    }
+
+    public static int withAddress(int word, int address) {
+        return (word & ~(0xFFFFF << 12)) | (address & 0xFFFFF) << 12;
+    }
+
     public static int clr(int r) {
         return encode(OPC_CLR, 0, r, 0);
     }
@@ -58,6 +159,16 @@ public class Instruction {
         return encode(OPC_JMP, 0, 0, address);
     }
 
+    /**
+     * Jump to address if register r cmpCode register s; cmpCode is 1-6.
+     */
+    public static int br(int cmpCode, int r, int s, int address) {
+        if (cmpCode < 1 || cmpCode > 6) {
+            throw new IllegalArgumentException("BR needs a compare code from 1 to 6: " + cmpCode);
+        }
+        return encode(OPC_BR + cmpCode - 1, 0, r, address) | (s & 0xF) << 4;
+    }
+
     public static int hlt() {
         return encode(OPC_HLT, 0, 0, 0);
     }
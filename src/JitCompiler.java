@@ -0,0 +1,401 @@
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translates machine words into a JVM method and loads it as a hidden class,
+ * so HotSpot compiles the program like any other Java code.
+ *
+ * The generated {@code run(int[])} keeps data memory in its int[] argument,
+ * each machine register and the compare flag in an int local, and turns
+ * every JMP into a JVM branch; a BR, and a CMP directly followed by the JMP
+ * that consumes it, become a single if_icmp. Results are the same as running the
+ * words on {@link VirtualMachine}.
+ *
+ * The class file is written by hand at major version 49, which predates
+ * StackMapTable, so no frames have to be computed. A JVM method holds at
+ * most 64K of bytecode; larger programs are rejected and should run on the
+ * interpreter.
+ */
+public final class JitCompiler {
+    private static final String CLASS_NAME = "JitProgram";
+
+    private static final int MAX_CODE = 65535;
+
+    // Locals of run(int[]): this, memory (aload_1), r0..r15, flag
+    private static final int FIRST_REGISTER = 2;
+    private static final int FLAG = FIRST_REGISTER + 16;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int ICONST_1 = 0x04;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int IALOAD = 0x2e;
+    private static final int ISTORE = 0x36;
+    private static final int IASTORE = 0x4f;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int IDIV = 0x6c;
+    private static final int IFNE = 0x9a;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int IF_ICMPGE = 0xa2;
+    private static final int IF_ICMPGT = 0xa3;
+    private static final int IF_ICMPLE = 0xa4;
+    private static final int GOTO = 0xa7;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    private JitCompiler() {}
+
+    public static CompiledProgram compile(int[] code) {
+        int memorySize = VirtualMachine.load(code).memorySize();
+        byte[] classFile = new Emitter(code).classFile();
+        CompiledProgram body;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            body = (CompiledProgram) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not load compiled program: " + e, e);
+        }
+        return memory -> {
+            if (memory.length < memorySize) {
+                throw new IllegalArgumentException("Program needs " + memorySize + " memory cells, got " + memory.length);
+            }
+            body.run(memory);
+        };
+    }
+
+    private static final class Emitter {
+        private final int[] words;
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private int poolCount = 1;
+        private final Map<Integer, Integer> intConstants = new HashMap<>();
+
+        private byte[] code = new byte[256];
+        private int length = 0;
+        // Bytecode offset of each instruction word, plus one for the end of the program
+        private final int[] offsets;
+        private int[] branchAt = new int[16];
+        private int[] branchTo = new int[16];
+        private int branchCount = 0;
+
+        Emitter(int[] words) {
+            this.words = words;
+            this.offsets = new int[words.length + 1];
+        }
+
+        byte[] classFile() {
+            int thisName = utf8(CLASS_NAME);
+            int thisClass = classRef(thisName);
+            int superClass = classRef(utf8("java/lang/Object"));
+            int iface = classRef(utf8("CompiledProgram"));
+            int initName = utf8("<init>");
+            int voidDesc = utf8("()V");
+            int superInit = methodRef(superClass, nameAndType(initName, voidDesc));
+            int runName = utf8("run");
+            int runDesc = utf8("([I)V");
+            int codeAttr = utf8("Code");
+
+            byte[] runCode = runMethod();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            u4(out, 0xCAFEBABE);
+            u2(out, 0);
+            u2(out, 49);
+            u2(out, poolCount);
+            out.writeBytes(pool.toByteArray());
+            u2(out, 0x0001 | 0x0010 | 0x0020);
+            u2(out, thisClass);
+            u2(out, superClass);
+            u2(out, 1);
+            u2(out, iface);
+            u2(out, 0);
+
+            u2(out, 2);
+            byte[] init = {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (superInit >> 8), (byte) superInit, (byte) RETURN};
+            method(out, initName, voidDesc, codeAttr, 1, 1, init);
+            method(out, runName, runDesc, codeAttr, 4, FLAG + 1, runCode);
+
+            u2(out, 0);
+            return out.toByteArray();
+        }
+
+        private byte[] runMethod() {
+            int n = words.length;
+            boolean[] targets = new boolean[n + 1];
+            for (int word : words) {
+                if (Instruction.isJump(word)) targets[Instruction.address(word)] = true;
+            }
+
+            // The flag only needs a local if some CMP is not fused with the JMP after it
+            boolean needsFlag = false;
+            for (int pc = 0; pc < n; pc++) {
+                if (Instruction.opcode(words[pc]) == Instruction.OPC_CMP && !fused(pc, targets)) needsFlag = true;
+            }
+
+            for (int r = 0; r < 16; r++) {
+                op(ICONST_0);
+                op(ISTORE, FIRST_REGISTER + r);
+            }
+            if (needsFlag) {
+                op(ICONST_1);
+                op(ISTORE, FLAG);
+            }
+
+            for (int pc = 0; pc < n; pc++) {
+                offsets[pc] = length;
+                int word = words[pc];
+                int reg = FIRST_REGISTER + Instruction.register(word);
+                int addr = Instruction.address(word);
+                int opcode = Instruction.opcode(word);
+                switch (Instruction.isBranch(opcode) ? Instruction.OPC_BR : opcode) {
+                    case Instruction.OPC_CLR -> {
+                        op(ICONST_0);
+                        op(ISTORE, reg);
+                    }
+                    case Instruction.OPC_ADD -> arith(reg, word, IADD);
+                    case Instruction.OPC_SUB -> arith(reg, word, ISUB);
+                    case Instruction.OPC_MUL -> arith(reg, word, IMUL);
+                    case Instruction.OPC_DIV -> arith(reg, word, IDIV);
+                    case Instruction.OPC_LOD -> {
+                        operand(word);
+                        op(ISTORE, reg);
+                    }
+                    case Instruction.OPC_STO -> {
+                        op(ALOAD_1);
+                        push(addr);
+                        op(ILOAD, reg);
+                        op(IASTORE);
+                    }
+                    case Instruction.OPC_CMP -> {
+                        int cmp = Instruction.cmpCode(word);
+                        if (fused(pc, targets)) {
+                            pc++;
+                            offsets[pc] = length;
+                            int target = Instruction.address(words[pc]);
+                            // Whichever way it goes, the pair leaves the flag set
+                            if (needsFlag) {
+                                op(ICONST_1);
+                                op(ISTORE, FLAG);
+                            }
+                            if (cmp == 0) {
+                                branch(GOTO, target);
+                            } else {
+                                op(ILOAD, reg);
+                                operand(word);
+                                branch(compareBranch(cmp), target);
+                            }
+                        } else if (cmp == 0) {
+                            op(ICONST_1);
+                            op(ISTORE, FLAG);
+                        } else {
+                            op(ILOAD, reg);
+                            operand(word);
+                            op(compareBranch(cmp));
+                            u2(7);
+                            op(ICONST_0);
+                            op(GOTO);
+                            u2(4);
+                            op(ICONST_1);
+                            op(ISTORE, FLAG);
+                        }
+                    }
+                    case Instruction.OPC_JMP -> {
+                        if (needsFlag) {
+                            op(ILOAD, FLAG);
+                            branch(IFNE, addr);
+                            op(ICONST_1);
+                            op(ISTORE, FLAG);
+                        } else {
+                            branch(GOTO, addr);
+                        }
+                    }
+                    case Instruction.OPC_BR -> {
+                        op(ILOAD, reg);
+                        op(ILOAD, FIRST_REGISTER + Instruction.branchRegister(word));
+                        branch(compareBranch(Instruction.branchCmp(word)), addr);
+                    }
+                    default -> op(RETURN);
+                }
+            }
+            offsets[n] = length;
+            op(RETURN);
+
+            for (int i = 0; i < branchCount; i++) {
+                int at = branchAt[i];
+                int delta = offsets[branchTo[i]] - at;
+                if (delta != (short) delta) {
+                    throw new IllegalArgumentException("Program too large to compile: branch of " + delta + " bytes");
+                }
+                code[at + 1] = (byte) (delta >> 8);
+                code[at + 2] = (byte) delta;
+            }
+            if (length > MAX_CODE) {
+                throw new IllegalArgumentException("Program too large to compile: " + length + " bytes of bytecode");
+            }
+            return Arrays.copyOf(code, length);
+        }
+
+        /**
+         * True when the JMP right after the CMP at pc consumes its flag and
+         * cannot be reached any other way.
+         */
+        private boolean fused(int pc, boolean[] targets) {
+            return pc + 1 < words.length && Instruction.opcode(words[pc + 1]) == Instruction.OPC_JMP && !targets[pc + 1];
+        }
+
+        private static int compareBranch(int cmp) {
+            return switch (cmp) {
+                case 1 -> IF_ICMPEQ;
+                case 2 -> IF_ICMPLT;
+                case 3 -> IF_ICMPGT;
+                case 4 -> IF_ICMPLE;
+                case 5 -> IF_ICMPGE;
+                case 6 -> IF_ICMPNE;
+                default -> throw new IllegalArgumentException("Unknown compare code " + cmp);
+            };
+        }
+
+        private void arith(int reg, int word, int opcode) {
+            op(ILOAD, reg);
+            operand(word);
+            op(opcode);
+            op(ISTORE, reg);
+        }
+
+        /**
+         * Pushes the operand of word: its immediate value or the memory cell it addresses.
+         */
+        private void operand(int word) {
+            if (Instruction.isImmediate(word)) push(Instruction.immediate(word));
+            else load(Instruction.address(word));
+        }
+
+        private void load(int addr) {
+            op(ALOAD_1);
+            push(addr);
+            op(IALOAD);
+        }
+
+        private void push(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value == (byte) value) {
+                op(BIPUSH, value);
+            } else if (value == (short) value) {
+                op(SIPUSH);
+                u2(value);
+            } else {
+                int index = intConstant(value);
+                if (index <= 0xFF) {
+                    op(LDC, index);
+                } else {
+                    op(LDC_W);
+                    u2(index);
+                }
+            }
+        }
+
+        private void branch(int opcode, int target) {
+            if (branchCount == branchAt.length) {
+                branchAt = Arrays.copyOf(branchAt, branchCount * 2);
+                branchTo = Arrays.copyOf(branchTo, branchCount * 2);
+            }
+            branchAt[branchCount] = length;
+            branchTo[branchCount] = target;
+            branchCount++;
+            op(opcode);
+            u2(0);
+        }
+
+        private void op(int opcode) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte) opcode;
+        }
+
+        private void op(int opcode, int operand) {
+            op(opcode);
+            op(operand);
+        }
+
+        private void u2(int value) {
+            op(value >> 8);
+            op(value);
+        }
+
+        private int intConstant(int value) {
+            Integer index = intConstants.get(value);
+            if (index != null) return index;
+            pool.write(3);
+            u4(pool, value);
+            intConstants.put(value, poolCount);
+            return poolCount++;
+        }
+
+        private int utf8(String s) {
+            pool.write(1);
+            u2(pool, s.length());
+            pool.writeBytes(s.getBytes(StandardCharsets.US_ASCII));
+            return poolCount++;
+        }
+
+        private int classRef(int name) {
+            pool.write(7);
+            u2(pool, name);
+            return poolCount++;
+        }
+
+        private int nameAndType(int name, int descriptor) {
+            pool.write(12);
+            u2(pool, name);
+            u2(pool, descriptor);
+            return poolCount++;
+        }
+
+        private int methodRef(int owner, int nameAndType) {
+            pool.write(10);
+            u2(pool, owner);
+            u2(pool, nameAndType);
+            return poolCount++;
+        }
+
+        private static void method(ByteArrayOutputStream out, int name, int descriptor, int codeAttr,
+                                   int maxStack, int maxLocals, byte[] body) {
+            u2(out, 0x0001);
+            u2(out, name);
+            u2(out, descriptor);
+            u2(out, 1);
+            u2(out, codeAttr);
+            u4(out, 12 + body.length);
+            u2(out, maxStack);
+            u2(out, maxLocals);
+            u4(out, body.length);
+            out.writeBytes(body);
+            u2(out, 0);
+            u2(out, 0);
+        }
+
+        private static void u2(ByteArrayOutputStream out, int value) {
+            out.write(value >> 8);
+            out.write(value);
+        }
+
+        private static void u4(ByteArrayOutputStream out, int value) {
+            u2(out, value >>> 16);
+            u2(out, value);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed spellings the lexer interns to small ints, so the parser can switch on
+ * an id instead of comparing token values. NONE marks identifiers, literals
+ * and anything else that is not one of these spellings.
+ */
+final class Lexeme {
+    static final int NONE = 0;
+
+    static final int FOR = 1;
+    static final int DURING = 2;
+    static final int IF = 3;
+    static final int ELIF = 4;
+    static final int ELSE = 5;
+    static final int NUM = 6;
+    static final int DEC = 7;
+
+    static final int PLUS = 8;
+    static final int MINUS = 9;
+    static final int STAR = 10;
+    static final int SLASH = 11;
+    static final int EQ = 12;
+    static final int BANG = 13;
+    static final int LT = 14;
+    static final int GT = 15;
+    static final int LE = 16;
+    static final int GE = 17;
+
+    static final int LPAREN = 18;
+    static final int RPAREN = 19;
+    static final int SEMI = 20;
+    static final int PIPE = 21;
+
+    private static final String[] SPELLING = {
+            "", "for", "during", "if", "elif", "else", "num", "dec",
+            "+", "-", "*", "/", "=", "!", "<", ">", "<=", ">=",
+            "(", ")", ";", "|",
+    };
+
+    private Lexeme() {}
+
+    static String spelling(int id) {
+        return SPELLING[id];
+    }
+
+    static boolean isKeyword(int id) {
+        return id >= FOR && id <= DEC;
+    }
+
+    static int lookup(CharSequence s) {
+        int len = s.length();
+        for (int id = 1; id < SPELLING.length; id++) {
+            String w = SPELLING[id];
+            if (w.length() == len && w.contentEquals(s)) return id;
+        }
+        return NONE;
+    }
+
+    /**
+     * Same as {@link #lookup(CharSequence)} for a UTF-8 slice of the source, without decoding it.
+     */
+    static int lookup(ByteBuffer src, int start, int len) {
+        int c = src.get(start);
+        switch (len) {
+            case 1 -> {
+                return switch (c) {
+                    case '+' -> PLUS;
+                    case '-' -> MINUS;
+                    case '*' -> STAR;
+                    case '/' -> SLASH;
+                    case '=' -> EQ;
+                    case '!' -> BANG;
+                    case '<' -> LT;
+                    case '>' -> GT;
+                    case '(' -> LPAREN;
+                    case ')' -> RPAREN;
+                    case ';' -> SEMI;
+                    case '|' -> PIPE;
+                    default -> NONE;
+                };
+            }
+            case 2 -> {
+                int c2 = src.get(start + 1);
+                if (c2 == '=') return c == '<' ? LE : c == '>' ? GE : NONE;
+                return c == 'i' && c2 == 'f' ? IF : NONE;
+            }
+            case 3 -> {
+                if (c == 'f') return matches(src, start, FOR);
+                if (c == 'n') return matches(src, start, NUM);
+                if (c == 'd') return matches(src, start, DEC);
+                return NONE;
+            }
+            case 4 -> {
+                if (c != 'e' || src.get(start + 1) != 'l') return NONE;
+                int c3 = src.get(start + 2);
+                if (c3 == 'i') return matches(src, start, ELIF);
+                if (c3 == 's') return matches(src, start, ELSE);
+                return NONE;
+            }
+            case 6 -> {
+                return c == 'd' ? matches(src, start, DURING) : NONE;
+            }
+            default -> {
+                return NONE;
+            }
+        }
+    }
+
+    private static int matches(ByteBuffer src, int start, int id) {
+        String w = SPELLING[id];
+        for (int k = 0; k < w.length(); k++) {
+            if (src.get(start + k) != w.charAt(k)) return NONE;
+        }
+        return id;
+    }
+}
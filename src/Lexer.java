@@ -1,18 +1,56 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class Lexer {
 
-    private enum States {
+    enum States {
         START, IDENTIFIER, NUMBER, DECIMAL, OPERATOR, DELIM, ACCEPT, ERROR,
     }
 
-    private enum Events {
+    enum Events {
         LETTER, DIGIT, DOT, OPERATOR, DELIM, WHITESPACE, UNKNOWN, END,
     }
 
-    private static Events classifyChar(char c) {
+    static final int S_START = States.START.ordinal();
+    static final int S_IDENTIFIER = States.IDENTIFIER.ordinal();
+    static final int S_NUMBER = States.NUMBER.ordinal();
+    static final int S_DECIMAL = States.DECIMAL.ordinal();
+    static final int S_OPERATOR = States.OPERATOR.ordinal();
+    static final int S_DELIM = States.DELIM.ordinal();
+    static final int S_ACCEPT = States.ACCEPT.ordinal();
+    static final int S_ERROR = States.ERROR.ordinal();
+
+    static final int E_WHITESPACE = Events.WHITESPACE.ordinal();
+    static final int E_END = Events.END.ordinal();
+
+    private static final int EVENT_COUNT = Events.values().length;
+
+    static final String OPERATOR_CHARS = "+-*/=!<>";
+
+    // Below this many bytes per chunk, forking costs more than it saves
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    // [state * EVENT_COUNT + event] -> next state; moves missing from the table go to ERROR
+    private static final int[] TRANSITIONS = flatten(buildTransitionTable());
+
+    // classifyChar() precomputed for ASCII
+    private static final int[] ASCII_EVENTS = buildAsciiEvents();
+
+    static int nextState(int state, int event) {
+        return TRANSITIONS[state * EVENT_COUNT + event];
+    }
+
+    static int eventOf(char c) {
+        return c < 128 ? ASCII_EVENTS[c] : classifyChar(c).ordinal();
+    }
+
+    static Events classifyChar(char c) {
         if (Character.isLetter(c)) return Events.LETTER;
         if (Character.isDigit(c)) return Events.DIGIT;
         if (c == '.') return Events.DOT;
@@ -22,28 +60,27 @@ public class Lexer {
         return Events.UNKNOWN;
     }
 
-    private static void emitToken(List<Token> tokens, String buffer, States state) {
+    private static void emitToken(List<Token> tokens, String buffer, int state) {
         if (buffer == null || buffer.isEmpty()) return;
         buffer = buffer.trim();
         if (buffer.isEmpty()) return;
 
-        if (state == States.IDENTIFIER) {
-            if (buffer.equals("for") || buffer.equals("during") || buffer.equals("if") || buffer.equals("elif") || buffer.equals("else") || buffer.equals("num") || buffer.equals("dec")) {
+        if (state == S_IDENTIFIER) {
+            if (Lexeme.isKeyword(Lexeme.lookup(buffer))) {
                 tokens.add(new Token("KEYWORD", buffer));
             } else {
                 tokens.add(new Token("IDENTIFIER", buffer));
             }
-        } else if (state == States.NUMBER || state == States.DECIMAL) {
+        } else if (state == S_NUMBER || state == S_DECIMAL) {
             tokens.add(new Token("LITERAL", buffer));
-        } else if (state == States.OPERATOR) {
+        } else if (state == S_OPERATOR) {
             tokens.add(new Token("OPERATOR", buffer));
-        } else if (state == States.DELIM) {
+        } else if (state == S_DELIM) {
             tokens.add(new Token("DELIM", buffer));
         }
     }
 
-    public List<Token> tokenize(File file) throws FileNotFoundException {
-        // transition table
+    private static States[][] buildTransitionTable() {
         States[][] transition_table = new States[States.values().length][Events.values().length];
 
         // START
@@ -105,11 +142,97 @@ public class Lexer {
         for (Events e : Events.values()) {
             transition_table[States.ERROR.ordinal()][e.ordinal()] = States.ERROR;
         }
+        return transition_table;
+    }
+
+    private static int[] flatten(States[][] table) {
+        int[] flat = new int[table.length * EVENT_COUNT];
+        for (int s = 0; s < table.length; s++) {
+            for (int e = 0; e < EVENT_COUNT; e++) {
+                States next = table[s][e];
+                flat[s * EVENT_COUNT + e] = (next == null ? States.ERROR : next).ordinal();
+            }
+        }
+        return flat;
+    }
+
+    private static int[] buildAsciiEvents() {
+        int[] events = new int[128];
+        for (char c = 0; c < 128; c++) {
+            events[c] = classifyChar(c).ordinal();
+        }
+        return events;
+    }
+
+    /**
+     * Tokenizes a memory-mapped file straight into a {@link TokenBuffer}. Same tokens as {@link #tokenize(File)}.
+     */
+    public TokenBuffer tokenizeBuffer(File file) throws IOException {
+        try (TokenStream stream = TokenStream.open(file)) {
+            return stream.drain();
+        }
+    }
+
+    /**
+     * Lexes a large file on the common fork-join pool. Same tokens as {@link #tokenizeBuffer(File)}.
+     */
+    public TokenBuffer tokenizeParallel(File file) throws IOException {
+        return tokenizeParallel(file, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * The lexer is back in START after every line terminator, so the file is cut
+     * into roughly equal chunks just after a newline, each chunk is lexed on its
+     * own, and the chunk buffers are joined in order.
+     */
+    public TokenBuffer tokenizeParallel(File file, ForkJoinPool pool) throws IOException {
+        ByteBuffer src = TokenStream.map(file);
+        int chunks = Math.min(pool.getParallelism() * CHUNKS_PER_THREAD, src.limit() / MIN_CHUNK_BYTES);
+        return tokenizeChunks(src, pool, chunks);
+    }
 
+    static TokenBuffer tokenizeChunks(ByteBuffer src, ForkJoinPool pool, int chunks) {
+        int size = src.limit();
+        if (chunks <= 1) return new TokenStream(src).drain();
+
+        List<ForkJoinTask<TokenBuffer>> tasks = new ArrayList<>(chunks);
+        int from = 0;
+        for (int k = 1; k <= chunks && from < size; k++) {
+            int to = k == chunks ? size : lineBoundaryAfter(src, (int) ((long) size * k / chunks));
+            if (to <= from) continue;
+            int chunkFrom = from;
+            tasks.add(pool.submit(() -> TokenStream.chunk(src, chunkFrom, to)
+                    .drainInto(new TokenBuffer(src, (to - chunkFrom) / 8))));
+            from = to;
+        }
+
+        List<TokenBuffer> parts = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<TokenBuffer> task : tasks) {
+            parts.add(task.join());
+        }
+        TokenBuffer tokens = TokenBuffer.concat(src, parts);
+        tokens.addText(TokenKind.EOF.code(), Lexeme.NONE, "EOF");
+        return tokens;
+    }
+
+    /**
+     * Offset just past the first '\n' or '\r' at or after from, or the end of src.
+     * Neither byte can occur inside a multi-byte UTF-8 sequence.
+     */
+    private static int lineBoundaryAfter(ByteBuffer src, int from) {
+        int size = src.limit();
+        for (int i = from; i < size; i++) {
+            byte b = src.get(i);
+            if (b == '\n' || b == '\r') return i + 1;
+        }
+        return size;
+    }
+
+    public List<Token> tokenize(File file) throws FileNotFoundException {
         Scanner reader = new Scanner(file);
         List<Token> tokens = new ArrayList<>();
         StringBuilder buffer = new StringBuilder();
-        States state = States.START;
+        int state = S_START;
 
         while (reader.hasNextLine()) {
             String line = reader.nextLine();
@@ -118,7 +241,7 @@ public class Lexer {
                 char c = line.charAt(i);
 
                 // Look ahead for size two operators
-                if ("+-*/=!<>".indexOf(c) != -1) {
+                if (OPERATOR_CHARS.indexOf(c) != -1) {
                     String two = "" + c + ((i + 1 < line.length()) ? line.charAt(i + 1) : '\0');
 
                     if (two.equals(">=") || two.equals("<=")) {
@@ -130,33 +253,31 @@ public class Lexer {
                     continue;
                 }
 
-                Events event = classifyChar(c);
-                States nextState = transition_table[state.ordinal()][event.ordinal()];
-                if (nextState == null) nextState = States.ERROR;
+                int event = eventOf(c);
+                int nextState = nextState(state, event);
 
-                if (nextState == States.ACCEPT) { // Character completes the token so emit to token list
+                if (nextState == S_ACCEPT) { // Character completes the token so emit to token list
                     emitToken(tokens, buffer.toString(), state);
                     buffer.setLength(0);
-                    state = States.START;
+                    state = S_START;
 
-                    if (event != Events.WHITESPACE) {
+                    if (event != E_WHITESPACE) {
                         i--;
                     }
-                } else if (nextState == States.ERROR) { // Character is invalid so add error token and clear buffer
+                } else if (nextState == S_ERROR) { // Character is invalid so add error token and clear buffer
                     tokens.add(new Token("ERROR", String.valueOf(c)));
                     buffer.setLength(0);
-                    state = States.START;
+                    state = S_START;
                 } else { // Character is valid so add to buffer for token
                     buffer.append(c);
                     state = nextState;
                 }
             }
 
-            States nextState = transition_table[state.ordinal()][Events.END.ordinal()];
-            if (nextState == States.ACCEPT) {
+            if (nextState(state, E_END) == S_ACCEPT) {
                 emitToken(tokens, buffer.toString(), state);
                 buffer.setLength(0);
-                state = States.START;
+                state = S_START;
             }
         }
 
@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Joins {@link ObjectModule}s into one program.
+ *
+ * Modules are laid out in the order given, code after code and data after
+ * data. Each relocated word gets its module's base added to its 20-bit
+ * address, and every import the address of the label it names. A variable
+ * gets one cell for all modules that use it, and so does each wide literal
+ * value; every module keeps its own temps.
+ */
+public final class Linker {
+    private static final int MAX_ADDRESS = 0xFFFFF;
+
+    /**
+     * A linked program: its code, the data memory it starts from, and the
+     * name of what each data cell holds.
+     */
+    public record Program(int[] code, int[] memory, String[] dataNames) {}
+
+    private Linker() {}
+
+    public static Program link(List<ObjectModule> modules) {
+        int[] codeBase = new int[modules.size()];
+        int codeSize = 0;
+        Map<String, Integer> labels = new HashMap<>();
+        Map<String, String> definedIn = new HashMap<>();
+        for (int k = 0; k < modules.size(); k++) {
+            ObjectModule module = modules.get(k);
+            codeBase[k] = codeSize;
+            codeSize += module.code.length;
+            if (codeSize > MAX_ADDRESS) {
+                throw new IllegalStateException("Linked code too large for 20-bit addresses: " + codeSize + " words");
+            }
+            for (Map.Entry<String, Integer> e : module.exports.entrySet()) {
+                String other = definedIn.putIfAbsent(e.getKey(), module.name);
+                if (other != null) {
+                    throw new IllegalStateException("Label " + e.getKey() + " defined in both " + other + " and "
+                            + module.name);
+                }
+                labels.put(e.getKey(), codeBase[k] + e.getValue());
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        List<Integer> values = new ArrayList<>();
+        Map<String, Integer> variables = new HashMap<>();
+        Map<Integer, Integer> literals = new HashMap<>();
+        int[] code = new int[codeSize];
+        for (int k = 0; k < modules.size(); k++) {
+            ObjectModule module = modules.get(k);
+            int[] cell = new int[module.dataKinds.length];
+            for (int addr = 0; addr < cell.length; addr++) {
+                String name = module.dataNames[addr];
+                int value = module.dataValues[addr];
+                Integer shared = switch (module.dataKinds[addr]) {
+                    case SymbolTable.VARIABLE -> variables.get(name);
+                    case SymbolTable.LITERAL -> literals.get(value);
+                    default -> null;
+                };
+                if (shared == null) {
+                    shared = names.size();
+                    names.add(name);
+                    values.add(module.dataKinds[addr] == SymbolTable.LITERAL ? value : 0);
+                    if (module.dataKinds[addr] == SymbolTable.VARIABLE) variables.put(name, shared);
+                    if (module.dataKinds[addr] == SymbolTable.LITERAL) literals.put(value, shared);
+                }
+                cell[addr] = shared;
+            }
+            if (names.size() > MAX_ADDRESS) {
+                throw new IllegalStateException("Linked data too large for 20-bit addresses: " + names.size() + " cells");
+            }
+
+            int base = codeBase[k];
+            System.arraycopy(module.code, 0, code, base, module.code.length);
+            for (int pc : module.codeRelocations) {
+                code[base + pc] = Instruction.withAddress(code[base + pc], base + Instruction.address(code[base + pc]));
+            }
+            for (int pc : module.dataRelocations) {
+                code[base + pc] = Instruction.withAddress(code[base + pc], cell[Instruction.address(code[base + pc])]);
+            }
+            for (int i = 0; i < module.importSites.length; i++) {
+                Integer target = labels.get(module.importNames[i]);
+                if (target == null) {
+                    throw new IllegalStateException("Undefined label: " + module.importNames[i] + " in " + module.name);
+                }
+                int pc = base + module.importSites[i];
+                code[pc] = Instruction.withAddress(code[pc], target);
+            }
+        }
+
+        int[] memory = new int[names.size()];
+        for (int addr = 0; addr < memory.length; addr++) memory[addr] = values.get(addr);
+        return new Program(code, memory, names.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,171 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Liveness of temps over an atom stream. Variables are never considered
+ * dead, since their final values are the program's result.
+ *
+ * Live sets are solved per block of the {@link ControlFlowGraph} and then
+ * walked back atom by atom to record, for each atom, which temps it reads
+ * for the last time and whether the temp it writes is read at all. The
+ * same walk gives each temp a live range, and temps whose ranges do not
+ * overlap are given the same data cell through {@link #slotOf}.
+ */
+public final class Liveness {
+    private static final int NONE = SymbolTable.NONE;
+    private static final int SRC1_DIES = 1;
+    private static final int SRC2_DIES = 2;
+    private static final int DEAD_STORE = 4;
+
+    private final AtomBuffer atoms;
+    private final SymbolTable symbols;
+    private final byte[] flags;
+    private final int[] slot;
+
+    // Live range of each temp, in positions 2 * atom (reads) and 2 * atom + 1 (writes)
+    private final int[] rangeStart;
+    private final int[] rangeEnd;
+
+    public Liveness(AtomBuffer atoms) {
+        this.atoms = atoms;
+        this.symbols = atoms.symbols;
+        int n = atoms.size();
+        flags = new byte[n];
+        slot = new int[symbols.size()];
+        rangeStart = new int[symbols.size()];
+        rangeEnd = new int[symbols.size()];
+        Arrays.fill(rangeStart, Integer.MAX_VALUE);
+        Arrays.fill(rangeEnd, -1);
+
+        ControlFlowGraph graph = ControlFlowGraph.build(atoms);
+        BitSet[] liveOut = solve(graph);
+        for (ControlFlowGraph.Block block : graph.blocks()) {
+            walkBack(block.start, block.end, liveOut[block.index]);
+        }
+        assignSlots();
+    }
+
+    /**
+     * True if id is a temp that atom reads and that is not live after it.
+     */
+    public boolean diesAt(int atom, int id) {
+        if (!symbols.isTemp(id)) return false;
+        return id == atoms.src1(atom) && (flags[atom] & SRC1_DIES) != 0
+                || id == atoms.src2(atom) && (flags[atom] & SRC2_DIES) != 0;
+    }
+
+    /**
+     * True if atom writes a temp that is never read afterwards.
+     */
+    public boolean isDeadStore(int atom) {
+        return (flags[atom] & DEAD_STORE) != 0;
+    }
+
+    /**
+     * The symbol whose data cell id uses: id itself, or for a temp possibly
+     * an earlier temp whose live range ended before this one began.
+     */
+    public int slotOf(int id) {
+        return id < slot.length && slot[id] != NONE ? slot[id] : id;
+    }
+
+    private BitSet[] solve(ControlFlowGraph graph) {
+        List<ControlFlowGraph.Block> blocks = graph.blocks();
+        int count = blocks.size();
+        BitSet[] use = new BitSet[count];
+        BitSet[] def = new BitSet[count];
+        for (ControlFlowGraph.Block block : blocks) {
+            int b = block.index;
+            use[b] = new BitSet();
+            def[b] = new BitSet();
+            for (int i = block.start; i < block.end; i++) {
+                for (int id : new int[] {atoms.src1(i), atoms.src2(i)}) {
+                    if (symbols.isTemp(id) && !def[b].get(id)) use[b].set(id);
+                }
+                if (symbols.isTemp(atoms.dest(i))) def[b].set(atoms.dest(i));
+            }
+        }
+
+        BitSet[] liveIn = new BitSet[count];
+        BitSet[] liveOut = new BitSet[count];
+        for (int b = 0; b < count; b++) {
+            liveIn[b] = new BitSet();
+            liveOut[b] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = count - 1; b >= 0; b--) {
+                BitSet out = liveOut[b];
+                for (ControlFlowGraph.Block s : blocks.get(b).successors()) out.or(liveIn[s.index]);
+                BitSet in = (BitSet) out.clone();
+                in.andNot(def[b]);
+                in.or(use[b]);
+                if (!in.equals(liveIn[b])) {
+                    liveIn[b] = in;
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    private void walkBack(int start, int end, BitSet liveOut) {
+        BitSet live = (BitSet) liveOut.clone();
+        for (int i = end - 1; i >= start; i--) {
+            cover(live, 2 * i + 1);
+            int src1 = atoms.src1(i);
+            int src2 = atoms.src2(i);
+            // Judged on what is live after the atom, so a temp that is read and rewritten lives on
+            if (symbols.isTemp(src1) && !live.get(src1)) flags[i] |= SRC1_DIES;
+            if (symbols.isTemp(src2) && !live.get(src2)) flags[i] |= SRC2_DIES;
+            int dest = atoms.dest(i);
+            if (symbols.isTemp(dest)) {
+                cover(dest, 2 * i + 1);
+                if (!live.get(dest)) flags[i] |= DEAD_STORE;
+                live.clear(dest);
+            }
+            if (symbols.isTemp(src1)) live.set(src1);
+            if (symbols.isTemp(src2)) live.set(src2);
+            cover(live, 2 * i);
+        }
+    }
+
+    private void cover(BitSet live, int position) {
+        for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+            cover(id, position);
+        }
+    }
+
+    private void cover(int id, int position) {
+        rangeStart[id] = Math.min(rangeStart[id], position);
+        rangeEnd[id] = Math.max(rangeEnd[id], position);
+    }
+
+    /**
+     * Linear scan over the live ranges in order of their start: a temp takes
+     * over the cell of a temp whose range has already ended, lowest first.
+     */
+    private void assignSlots() {
+        List<Integer> temps = new ArrayList<>();
+        for (int id = 0; id < rangeEnd.length; id++) {
+            if (rangeEnd[id] >= 0) temps.add(id);
+        }
+        temps.sort((a, b) -> Integer.compare(rangeStart[a], rangeStart[b]));
+
+        // Entries are {end of range, owner}; free cells are kept by owner
+        PriorityQueue<int[]> active = new PriorityQueue<>((a, b) -> Integer.compare(a[0], b[0]));
+        PriorityQueue<Integer> free = new PriorityQueue<>();
+        for (int id : temps) {
+            while (!active.isEmpty() && active.peek()[0] < rangeStart[id]) {
+                free.add(active.poll()[1]);
+            }
+            int owner = free.isEmpty() ? id : free.poll();
+            slot[id] = owner;
+            active.add(new int[] {rangeEnd[id], owner});
+        }
+    }
+}
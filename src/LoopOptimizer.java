@@ -0,0 +1,312 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loop-invariant code motion and strength reduction on the atom stream.
+ *
+ * A loop is the range from a label to the first later JMP back to it, as the
+ * parser writes for both for and during loops, provided nothing outside the
+ * range jumps into it; control then enters only by falling into the label,
+ * and atoms placed just before the label form a preheader that runs once.
+ * Loops come from {@link AtomList#loops} and are rewritten on that list.
+ * Single entry is checked once, on the positions before any rewrite, since
+ * hoisting and stepping only move or add atoms between a loop's preheader
+ * and its JMP back and so never reorder labels and jumps.
+ *
+ * Invariant arithmetic moves to the preheader. A product of an induction
+ * variable (one only ever stepped by a literal in the loop) and an
+ * invariant is instead kept in a temp that is set in the preheader and
+ * stepped along with the variable, when it is multiplied often enough in
+ * the loop to pay for the extra additions.
+ */
+public final class LoopOptimizer {
+    private static final int NONE = SymbolTable.NONE;
+    private static final int NO_CMP = AtomBuffer.NO_CMP;
+
+    private record Product(int induction, int factor) {}
+
+    private final AtomList list;
+    private final SymbolTable symbols;
+    // Writes and reads of each symbol in the whole stream, kept up to date as loops are rewritten
+    private int[] defs;
+    private int[] uses;
+    // Per symbol, for the loop at hand only and cleared after it
+    private int[] loopDefs;
+    private boolean[] hoistedDef;
+    private boolean[] notStepped;
+    // Block of the loop a temp is written in, plus one, and its reads later in that block
+    private int[] defBlock;
+    private int[] readsAfter;
+    // Nodes of the loop at hand, in order
+    private int[] body = new int[64];
+
+    private LoopOptimizer(AtomBuffer atoms, AtomList list) {
+        this.list = list;
+        symbols = atoms.symbols;
+        int n = symbols.size();
+        defs = new int[n];
+        uses = AtomOptimizer.useCounts(atoms);
+        loopDefs = new int[n];
+        hoistedDef = new boolean[n];
+        notStepped = new boolean[n];
+        defBlock = new int[n];
+        readsAfter = new int[n];
+        for (int i = 0; i < atoms.size(); i++) {
+            if (atoms.dest(i) != NONE) defs[atoms.dest(i)]++;
+        }
+    }
+
+    public static AtomBuffer optimize(AtomBuffer atoms) {
+        AtomList list = new AtomList(atoms);
+        List<AtomList.Loop> loops = list.loops();
+        if (loops.isEmpty()) return atoms;
+        int labels = atoms.symbols.size();
+        int[] firstJump = new int[labels];
+        int[] lastJump = new int[labels];
+        Arrays.fill(firstJump, Integer.MAX_VALUE);
+        Arrays.fill(lastJump, -1);
+        for (int i = 0; i < atoms.size(); i++) {
+            if (atoms.op(i) != AtomOp.JMP && atoms.op(i) != AtomOp.TST) continue;
+            firstJump[atoms.label(i)] = Math.min(firstJump[atoms.label(i)], i);
+            lastJump[atoms.label(i)] = i;
+        }
+        LoopOptimizer pass = new LoopOptimizer(atoms, list);
+        for (AtomList.Loop loop : loops) {
+            if (singleEntry(atoms, loop, firstJump, lastJump)) pass.optimizeLoop(loop);
+        }
+        return list.changed() ? list.toBuffer() : atoms;
+    }
+
+    /**
+     * Whether every jump to a label in the loop comes from inside it, going
+     * by the positions in atoms.
+     */
+    private static boolean singleEntry(AtomBuffer atoms, AtomList.Loop loop, int[] firstJump, int[] lastJump) {
+        for (int i = loop.head(); i <= loop.tail(); i++) {
+            if (atoms.op(i) != AtomOp.LBL) continue;
+            int label = atoms.label(i);
+            if (firstJump[label] < loop.head() || lastJump[label] > loop.tail()) return false;
+        }
+        return true;
+    }
+
+    private static boolean isArith(AtomOp op) {
+        return op == AtomOp.ADD || op == AtomOp.SUB || op == AtomOp.MUL || op == AtomOp.DIV;
+    }
+
+    private static boolean endsBlock(AtomOp op) {
+        return op == AtomOp.LBL || op == AtomOp.JMP || op == AtomOp.TST || op == AtomOp.HLT;
+    }
+
+    private void optimizeLoop(AtomList.Loop loop) {
+        int head = loop.head();
+        int n = 0;
+        for (int node = head; ; node = list.next(node)) {
+            if (n == body.length) body = Arrays.copyOf(body, n * 2);
+            body[n++] = node;
+            if (node == loop.tail()) break;
+        }
+        int block = 0;
+        for (int k = 0; k < n; k++) {
+            int node = body[k];
+            countRead(list.src1(node), block);
+            countRead(list.src2(node), block);
+            int dest = list.dest(node);
+            if (dest != NONE) {
+                loopDefs[dest]++;
+                defBlock[dest] = block + 1;
+                readsAfter[dest] = 0;
+                if (!isStep(node)) notStepped[dest] = true;
+            }
+            if (endsBlock(list.op(node))) block++;
+        }
+
+        boolean[] hoisted = new boolean[n];
+        boolean hoistedAny = false;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = 0; k < n; k++) {
+                if (!hoisted[k] && canHoist(body[k])) {
+                    hoisted[k] = true;
+                    hoistedDef[list.dest(body[k])] = true;
+                    hoistedAny = changed = true;
+                }
+            }
+        }
+
+        // Each product of an induction variable and an invariant gets a temp kept equal to it
+        Map<Product, Integer> occurrences = new LinkedHashMap<>();
+        for (int k = 0; k < n; k++) {
+            Product product = hoisted[k] ? null : reducible(body[k]);
+            if (product != null) occurrences.merge(product, 1, Integer::sum);
+        }
+        Map<Product, Integer> reduced = new LinkedHashMap<>();
+        for (Map.Entry<Product, Integer> e : occurrences.entrySet()) {
+            // Keeping the product costs a load, an add and a store at every update of the
+            // induction variable; each multiplication it replaces saves about one word
+            if (e.getValue() > 3 * loopDefs[e.getKey().induction()]) reduced.put(e.getKey(), newTemp());
+        }
+
+        if (hoistedAny || !reduced.isEmpty()) rewrite(head, n, hoisted, reduced);
+        for (int k = 0; k < n; k++) {
+            int dest = list.dest(body[k]);
+            loopDefs[dest] = 0;
+            hoistedDef[dest] = false;
+            notStepped[dest] = false;
+            defBlock[dest] = 0;
+        }
+    }
+
+    private void rewrite(int head, int n, boolean[] hoisted, Map<Product, Integer> reduced) {
+        for (int k = 0; k < n; k++) {
+            if (hoisted[k]) list.moveBefore(body[k], head);
+        }
+        for (Map.Entry<Product, Integer> e : reduced.entrySet()) {
+            emitBefore(head, AtomOp.MUL, e.getKey().induction(), e.getKey().factor(), e.getValue());
+        }
+        Map<List<Integer>, Integer> steps = new HashMap<>();
+        for (int k = 0; k < n; k++) {
+            int dest = list.dest(body[k]);
+            if (hoisted[k] || !isInduction(dest)) continue;
+            for (Product product : reduced.keySet()) {
+                if (product.induction() == dest) step(product.factor(), increment(body[k]), steps, head);
+            }
+        }
+
+        // Products and steps are worked out from the loop as it was before this rewrite
+        Product[] products = new Product[n];
+        for (int k = 0; k < n; k++) products[k] = hoisted[k] ? null : reducible(body[k]);
+        for (int k = 0; k < n; k++) {
+            int node = body[k];
+            if (hoisted[k]) continue;
+            if (products[k] != null && reduced.containsKey(products[k])) {
+                int temp = reduced.get(products[k]);
+                uses[list.src1(node)]--;
+                uses[list.src2(node)]--;
+                uses[temp]++;
+                list.set(node, AtomOp.MOV, temp, NONE, list.dest(node), NO_CMP, NONE);
+                continue;
+            }
+            int dest = list.dest(node);
+            if (!isInduction(dest)) continue;
+            int at = node;
+            for (Map.Entry<Product, Integer> e : reduced.entrySet()) {
+                if (e.getKey().induction() != dest) continue;
+                int step = step(e.getKey().factor(), increment(node), steps, head);
+                int temp = e.getValue();
+                at = list.insertAfter(at, list.op(node), temp, step, temp, NO_CMP, NONE);
+                defs[temp]++;
+                uses[temp]++;
+                uses[step]++;
+            }
+        }
+    }
+
+    private void countRead(int id, int block) {
+        if (id != NONE && defBlock[id] == block + 1) readsAfter[id]++;
+    }
+
+    /**
+     * An arithmetic atom can move to the preheader when its operands do not
+     * change in the loop and it computes a temp that is written nowhere else
+     * and read only later in the same block, so no read can tell when it
+     * was computed. A division moves only if it cannot fail.
+     */
+    private boolean canHoist(int node) {
+        AtomOp op = list.op(node);
+        int dest = list.dest(node);
+        if (!isArith(op) || !symbols.isTemp(dest) || defs[dest] != 1) return false;
+        if (!isInvariant(list.src1(node)) || !isInvariant(list.src2(node))) return false;
+        int divisor = list.src2(node);
+        if (op == AtomOp.DIV && !(symbols.isLiteral(divisor) && symbols.literalValue(divisor) != 0)) {
+            return false;
+        }
+        return readsAfter[dest] == uses[dest];
+    }
+
+    private boolean isInvariant(int id) {
+        return loopDefs[id] == 0 || hoistedDef[id];
+    }
+
+    /**
+     * A symbol whose every write in the loop adds or subtracts a literal to itself.
+     */
+    private boolean isInduction(int id) {
+        return id != NONE && loopDefs[id] > 0 && !notStepped[id];
+    }
+
+    private boolean isStep(int node) {
+        AtomOp op = list.op(node);
+        int dest = list.dest(node);
+        int src1 = list.src1(node);
+        int src2 = list.src2(node);
+        return op == AtomOp.ADD && (src1 == dest && symbols.isLiteral(src2) || src2 == dest && symbols.isLiteral(src1))
+                || op == AtomOp.SUB && src1 == dest && symbols.isLiteral(src2);
+    }
+
+    private Product reducible(int node) {
+        if (list.op(node) != AtomOp.MUL) return null;
+        int src1 = list.src1(node);
+        int src2 = list.src2(node);
+        int dest = list.dest(node);
+        if (isInduction(src1) && isInvariant(src2) && dest != src1) return new Product(src1, src2);
+        if (isInduction(src2) && isInvariant(src1) && dest != src2) return new Product(src2, src1);
+        return null;
+    }
+
+    private int increment(int node) {
+        return list.src1(node) == list.dest(node) ? list.src2(node) : list.src1(node);
+    }
+
+    /**
+     * The amount a product changes by when its induction variable changes by
+     * increment: a literal when the factor is one too, otherwise a temp
+     * computed into the preheader the first time it is asked for.
+     */
+    private int step(int factor, int increment, Map<List<Integer>, Integer> steps, int head) {
+        if (symbols.isLiteral(factor)) {
+            int product = symbols.literalValue(factor) * symbols.literalValue(increment);
+            int literal = symbols.literal(Integer.toString(product));
+            grow();
+            return literal;
+        }
+        List<Integer> key = List.of(factor, increment);
+        Integer temp = steps.get(key);
+        if (temp == null) {
+            temp = newTemp();
+            steps.put(key, temp);
+            emitBefore(head, AtomOp.MUL, factor, increment, temp);
+        }
+        return temp;
+    }
+
+    private void emitBefore(int head, AtomOp op, int src1, int src2, int dest) {
+        list.insertBefore(head, op, src1, src2, dest, NO_CMP, NONE);
+        defs[dest]++;
+        uses[src1]++;
+        uses[src2]++;
+    }
+
+    private int newTemp() {
+        int temp = symbols.newTemp();
+        grow();
+        return temp;
+    }
+
+    private void grow() {
+        int n = symbols.size();
+        if (n <= defs.length) return;
+        int capacity = Math.max(n, defs.length * 2);
+        defs = Arrays.copyOf(defs, capacity);
+        uses = Arrays.copyOf(uses, capacity);
+        loopDefs = Arrays.copyOf(loopDefs, capacity);
+        hoistedDef = Arrays.copyOf(hoistedDef, capacity);
+        notStepped = Arrays.copyOf(notStepped, capacity);
+        defBlock = Arrays.copyOf(defBlock, capacity);
+        readsAfter = Arrays.copyOf(readsAfter, capacity);
+    }
+}
@@ -0,0 +1,372 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unrolls loops whose trip count is known at compile time.
+ *
+ * The loop shape is the one the parser writes for a for loop once its
+ * update has been retargeted: a literal MOV into the induction variable,
+ * the loop label, a header computing the exit test from the variable and
+ * literals only, the body, a single step of the variable by a literal and
+ * the JMP back. The body must leave the variable alone and keep its jumps
+ * to itself. The trip count is solved directly when the header is just the
+ * test, and otherwise found by running the header ahead of time.
+ *
+ * A loop whose copies all fit the size budget is replaced by them. Otherwise
+ * the body is repeated factor times per trip of the loop (fewer if the
+ * budget is tight), and the iterations left over are peeled off in front
+ * of it, so the header is still only tested at multiples of the factor and
+ * never exits in the middle of a group. Labels inside the body are renamed
+ * in every copy.
+ *
+ * Loops come from {@link AtomList#loops} and are replaced on that list. The
+ * counts of reads and jumps that matching needs are updated as copies go in
+ * and originals come out, so matching a loop walks only that loop.
+ */
+public final class LoopUnroller {
+    public static final int DEFAULT_FACTOR = 4;
+    public static final int DEFAULT_BUDGET = 256;
+
+    private static final int NONE = SymbolTable.NONE;
+    private static final int END = AtomList.END;
+    // Header atoms run ahead of time per loop beyond this are not worth the compile time
+    private static final int MAX_HEADER_RUNS = 1 << 16;
+
+    private final int factor;
+    private final int budget;
+
+    /**
+     * factor is the number of body copies per trip of a partly unrolled
+     * loop, and 0 turns unrolling off altogether, even for loops that would
+     * fit the budget; budget is the most atoms the copies of one loop may take.
+     */
+    public LoopUnroller(int factor, int budget) {
+        if (factor < 0) throw new IllegalArgumentException("Unroll factor must not be negative: " + factor);
+        this.factor = factor;
+        this.budget = budget;
+    }
+
+    public LoopUnroller() {
+        this(DEFAULT_FACTOR, DEFAULT_BUDGET);
+    }
+
+    private record Loop(int head, int test, int step, int tail) {}
+
+    public AtomBuffer unroll(AtomBuffer atoms) {
+        if (factor == 0) return atoms;
+        AtomList list = new AtomList(atoms);
+        List<AtomList.Loop> candidates = list.loops();
+        if (candidates.isEmpty()) return atoms;
+        Pass pass = new Pass(atoms, list);
+        for (AtomList.Loop c : candidates) {
+            Loop loop = pass.match(c.head(), c.tail());
+            if (loop == null) continue;
+            int trips = pass.tripCount(loop);
+            if (trips >= 0) pass.unroll(loop, trips);
+        }
+        return pass.list.changed() ? pass.list.toBuffer() : atoms;
+    }
+
+    /**
+     * The literal a step atom adds to its variable, or NONE if it is not a step.
+     */
+    private static int stepSize(AtomList list, int node) {
+        SymbolTable symbols = list.symbols;
+        AtomOp op = list.op(node);
+        int var = list.dest(node);
+        int src1 = list.src1(node);
+        int src2 = list.src2(node);
+        if (op == AtomOp.ADD && src1 == var && symbols.isLiteral(src2)) return src2;
+        if (op == AtomOp.ADD && src2 == var && symbols.isLiteral(src1)) return src1;
+        if (op == AtomOp.SUB && src1 == var && symbols.isLiteral(src2)) return src2;
+        return NONE;
+    }
+
+    private static boolean isJump(AtomOp op) {
+        return op == AtomOp.JMP || op == AtomOp.TST;
+    }
+
+    /**
+     * The first trip on which left cmp right holds, where each side is var,
+     * starting at start and moving by delta per trip, or a literal; -1 if
+     * there is none before var would overflow.
+     */
+    private static int firstExit(SymbolTable symbols, int cmp, int left, int right, int var, long start, long delta) {
+        if (left != var && right != var || left == right) {
+            long a = left == var ? start : constant(symbols, left);
+            long b = right == var ? start : constant(symbols, right);
+            if (a == Long.MIN_VALUE || b == Long.MIN_VALUE) return -1;
+            return VirtualMachine.compare(cmp, (int) a, (int) b) ? 0 : -1;
+        }
+        if (right == var) {
+            right = left;
+            cmp = switch (cmp) {
+                case 2 -> 3;
+                case 3 -> 2;
+                case 4 -> 5;
+                case 5 -> 4;
+                default -> cmp;
+            };
+        }
+        long bound = constant(symbols, right);
+        if (bound == Long.MIN_VALUE) return -1;
+        long trips = switch (cmp) {
+            case 1 -> delta == 0 ? (start == bound ? 0 : -1)
+                    : (bound - start) % delta == 0 && (bound - start) / delta >= 0 ? (bound - start) / delta : -1;
+            case 2 -> start < bound ? 0 : delta < 0 ? (start - bound) / -delta + 1 : -1;
+            case 3 -> start > bound ? 0 : delta > 0 ? (bound - start) / delta + 1 : -1;
+            case 4 -> start <= bound ? 0 : delta < 0 ? Math.ceilDiv(start - bound, -delta) : -1;
+            case 5 -> start >= bound ? 0 : delta > 0 ? Math.ceilDiv(bound - start, delta) : -1;
+            case 6 -> start != bound ? 0 : delta != 0 ? 1 : -1;
+            default -> 0;
+        };
+        if (trips < 0 || trips > Integer.MAX_VALUE) return -1;
+        long last = start + trips * delta;
+        return last < Integer.MIN_VALUE || last > Integer.MAX_VALUE ? -1 : (int) trips;
+    }
+
+    /**
+     * The value of a literal or NONE, or Long.MIN_VALUE for anything else.
+     */
+    private static long constant(SymbolTable symbols, int id) {
+        if (id == NONE) return 0;
+        return symbols.isLiteral(id) ? symbols.literalValue(id) : Long.MIN_VALUE;
+    }
+
+    /**
+     * One run over a stream, with counts kept up to date as loops are
+     * replaced so that matching a loop only looks at the loop.
+     */
+    private final class Pass {
+        final AtomList list;
+        final SymbolTable symbols;
+        // Reads of each symbol, and jumps to each label, in the whole stream
+        int[] uses;
+        int[] jumps;
+        // Scratch per symbol: mark[id] == generation flags it for the check at hand
+        int[] mark;
+        int generation;
+        int[] counts;
+        int[] values;
+
+        Pass(AtomBuffer atoms, AtomList list) {
+            this.list = list;
+            symbols = atoms.symbols;
+            int n = symbols.size();
+            uses = AtomOptimizer.useCounts(atoms);
+            jumps = new int[n];
+            mark = new int[n];
+            counts = new int[n];
+            values = new int[n];
+            for (int i = 0; i < atoms.size(); i++) {
+                if (isJump(atoms.op(i))) jumps[atoms.label(i)]++;
+            }
+        }
+
+        Loop match(int head, int tail) {
+            if (list.removed(head) || list.removed(tail)) return null;
+            int test = list.next(head);
+            while (test != tail && list.op(test) != AtomOp.TST) test = list.next(test);
+            int step = list.prev(tail);
+            if (test == tail || test == step) return null;
+            // The test must leave the loop for the label right after it
+            int exit = list.next(tail);
+            if (exit == END || list.op(exit) != AtomOp.LBL || list.label(exit) != list.label(test)) return null;
+            int var = list.dest(step);
+            if (var == NONE || stepSize(list, step) == NONE) return null;
+
+            // What the header computes must not be needed anywhere else, since copies skip it
+            int header = ++generation;
+            for (int n = list.next(head); n != test; n = list.next(n)) {
+                int dest = list.dest(n);
+                if (dest == NONE || mark[dest] == header) return null;
+                mark[dest] = header;
+            }
+            for (int n = list.next(head); ; n = list.next(n)) {
+                if (mark[list.src1(n)] == header) counts[list.src1(n)]++;
+                if (mark[list.src2(n)] == header) counts[list.src2(n)]++;
+                if (n == test) break;
+            }
+            boolean unused = true;
+            for (int n = list.next(head); n != test; n = list.next(n)) {
+                int dest = list.dest(n);
+                if (counts[dest] != uses[dest]) unused = false;
+                counts[dest] = 0;
+            }
+            if (!unused) return null;
+
+            // Jumps in the body stay in the body, and nothing else jumps into the loop
+            if (jumps[list.label(head)] != 1) return null;
+            for (int n = list.next(head); n != test; n = list.next(n)) {
+                if (list.op(n) == AtomOp.LBL && jumps[list.label(n)] != 0) return null;
+            }
+            int body = ++generation;
+            for (int n = list.next(test); n != step; n = list.next(n)) {
+                if (list.op(n) == AtomOp.LBL) mark[list.label(n)] = body;
+            }
+            boolean closed = true;
+            for (int n = list.next(test); n != step; n = list.next(n)) {
+                if (!isJump(list.op(n))) continue;
+                if (mark[list.label(n)] != body) closed = false;
+                counts[list.label(n)]++;
+            }
+            for (int n = list.next(test); n != step; n = list.next(n)) {
+                if (list.op(n) == AtomOp.LBL && counts[list.label(n)] != jumps[list.label(n)]) closed = false;
+            }
+            for (int n = list.next(test); n != step; n = list.next(n)) {
+                if (isJump(list.op(n))) counts[list.label(n)] = 0;
+            }
+            if (!closed) return null;
+
+            for (int n = list.next(head); n != step; n = list.next(n)) {
+                if (list.dest(n) == var) return null;
+            }
+            return new Loop(head, test, step, tail);
+        }
+
+        /**
+         * The number of times the body runs, starting from the literal the
+         * variable was last set to before the loop, or -1 if that value or
+         * the header's outcome cannot be known.
+         */
+        int tripCount(Loop loop) {
+            int var = list.dest(loop.step());
+            int start = 0;
+            boolean found = false;
+            for (int n = list.prev(loop.head()); n != END && !found; n = list.prev(n)) {
+                AtomOp op = list.op(n);
+                if (op == AtomOp.LBL || op == AtomOp.JMP || op == AtomOp.TST || op == AtomOp.HLT) return -1;
+                if (list.dest(n) != var) continue;
+                if (op != AtomOp.MOV || !symbols.isLiteral(list.src1(n))) return -1;
+                start = symbols.literalValue(list.src1(n));
+                found = true;
+            }
+            if (!found) return -1;
+
+            long delta = symbols.literalValue(stepSize(list, loop.step()));
+            if (list.op(loop.step()) == AtomOp.SUB) delta = -delta;
+            int test = loop.test();
+            if (list.next(loop.head()) == test) {
+                return firstExit(symbols, list.cmp(test), list.src1(test), list.src2(test), var, start, delta);
+            }
+            return runHeader(loop, var, start, (int) delta);
+        }
+
+        /**
+         * Runs the header for successive values of the variable until the
+         * test leaves the loop. Only temps may be computed in the header, so
+         * nothing outside sees it skipped, and every operand must be known.
+         */
+        int runHeader(Loop loop, int var, int start, int delta) {
+            int known = ++generation;
+            mark[var] = known;
+            int length = 0;
+            for (int n = list.next(loop.head()); ; n = list.next(n)) {
+                if (!isKnown(list.src1(n), known) || !isKnown(list.src2(n), known)) return -1;
+                if (n == loop.test()) break;
+                AtomOp op = list.op(n);
+                boolean arith = op == AtomOp.MOV || op == AtomOp.ADD || op == AtomOp.SUB || op == AtomOp.MUL
+                        || op == AtomOp.DIV;
+                if (!arith || !symbols.isTemp(list.dest(n))) return -1;
+                mark[list.dest(n)] = known;
+                length++;
+            }
+
+            int value = start;
+            for (int trips = 0; trips <= MAX_HEADER_RUNS / length; trips++) {
+                values[var] = value;
+                for (int n = list.next(loop.head()); n != loop.test(); n = list.next(n)) {
+                    int a = valueOf(list.src1(n));
+                    int b = valueOf(list.src2(n));
+                    int dest = list.dest(n);
+                    switch (list.op(n)) {
+                        case MOV -> values[dest] = a;
+                        case ADD -> values[dest] = a + b;
+                        case SUB -> values[dest] = a - b;
+                        case MUL -> values[dest] = a * b;
+                        default -> {
+                            if (b == 0) return -1;
+                            values[dest] = a / b;
+                        }
+                    }
+                }
+                int test = loop.test();
+                if (VirtualMachine.compare(list.cmp(test), valueOf(list.src1(test)), valueOf(list.src2(test)))) {
+                    return trips;
+                }
+                value += delta;
+            }
+            return -1;
+        }
+
+        boolean isKnown(int id, int known) {
+            return id == NONE || symbols.isLiteral(id) || mark[id] == known;
+        }
+
+        int valueOf(int id) {
+            if (id == NONE) return 0;
+            return symbols.isLiteral(id) ? symbols.literalValue(id) : values[id];
+        }
+
+        void unroll(Loop loop, int trips) {
+            // Each copy is the body plus the step
+            int size = 0;
+            for (int n = list.next(loop.test()); n != loop.tail(); n = list.next(n)) size++;
+            int header = 1;
+            for (int n = loop.head(); n != loop.test(); n = list.next(n)) header++;
+
+            if ((long) trips * size <= budget) {
+                for (int k = 0; k < trips; k++) copyBody(loop, loop.head());
+                removeRange(loop.head(), loop.tail());
+                return;
+            }
+            int per = factor;
+            while (per > 1 && (long) (per + trips % per) * size + header + 1 > budget) per--;
+            if (per <= 1) return;
+            for (int k = 0; k < trips % per; k++) copyBody(loop, loop.head());
+            for (int k = 0; k < per; k++) copyBody(loop, loop.tail());
+            removeRange(list.next(loop.test()), loop.step());
+        }
+
+        void copyBody(Loop loop, int at) {
+            Map<Integer, Integer> renamed = new HashMap<>();
+            for (int n = list.next(loop.test()); n != loop.step(); n = list.next(n)) {
+                if (list.op(n) == AtomOp.LBL) renamed.put(list.label(n), symbols.newLabel());
+            }
+            grow();
+            for (int n = list.next(loop.test()); ; n = list.next(n)) {
+                int label = renamed.getOrDefault(list.label(n), list.label(n));
+                list.insertBefore(at, list.op(n), list.src1(n), list.src2(n), list.dest(n), list.cmp(n), label);
+                uses[list.src1(n)]++;
+                uses[list.src2(n)]++;
+                if (isJump(list.op(n))) jumps[label]++;
+                if (n == loop.step()) break;
+            }
+        }
+
+        void removeRange(int first, int last) {
+            for (int n = first; ; ) {
+                int next = list.next(n);
+                uses[list.src1(n)]--;
+                uses[list.src2(n)]--;
+                if (isJump(list.op(n))) jumps[list.label(n)]--;
+                list.remove(n);
+                if (n == last) break;
+                n = next;
+            }
+        }
+
+        void grow() {
+            int n = symbols.size();
+            if (n <= uses.length) return;
+            int capacity = Math.max(n, uses.length * 2);
+            uses = Arrays.copyOf(uses, capacity);
+            jumps = Arrays.copyOf(jumps, capacity);
+            mark = Arrays.copyOf(mark, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+}
@@ -1,33 +1,259 @@
 void main(String[] args) {
     String filename = "main.cj";
-    if (args.length > 0) filename = args[0];
+    boolean stream = false;
+    boolean run = false;
+    boolean jit = false;
+    boolean optimize = false;
+    int unroll = LoopUnroller.DEFAULT_FACTOR;
+    boolean batch = false;
+    boolean link = false;
+    boolean emitModule = false;
+    boolean dump = false;
+    String objName = null;
+    String outDir = "out";
+    String cacheDir = null;
+    int jobs = Runtime.getRuntime().availableProcessors();
+    for (String arg : args) {
+        if (arg.equals("--stream")) stream = true;
+        else if (arg.equals("--run")) run = true;
+        else if (arg.equals("--jit")) run = jit = true;
+        else if (arg.equals("-O")) optimize = true;
+        else if (arg.startsWith("--unroll=")) unroll = Integer.parseInt(arg.substring("--unroll=".length()));
+        else if (arg.equals("--batch")) batch = true;
+        else if (arg.equals("--link")) link = true;
+        else if (arg.equals("--module")) emitModule = true;
+        else if (arg.equals("--dump")) dump = true;
+        else if (arg.startsWith("--obj=")) objName = arg.substring("--obj=".length());
+        else if (arg.startsWith("--out=")) outDir = arg.substring("--out=".length());
+        else if (arg.startsWith("--cache=")) cacheDir = arg.substring("--cache=".length());
+        else if (arg.startsWith("--jobs=")) jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+        else filename = arg;
+    }
+    if (objName == null && link) {
+        objName = "linked" + ObjectFile.EXTENSION;
+    } else if (objName == null) {
+        String base = filename.endsWith(BatchCompiler.SOURCE_EXTENSION)
+                ? filename.substring(0, filename.length() - BatchCompiler.SOURCE_EXTENSION.length()) : filename;
+        objName = base + ObjectFile.EXTENSION;
+    }
 
     Lexer lexer = new Lexer();
     try {
-        List<Token> tokens = lexer.tokenize(new File(filename));
+        CompileCache cache = cacheDir == null ? null : new CompileCache(Path.of(cacheDir));
+        if (batch) {
+            // filename is a directory of sources or a file listing them
+            Path input = Path.of(filename);
+            Path root = Files.isDirectory(input) ? input : input.toAbsolutePath().getParent();
+            List<Path> sources = BatchCompiler.sources(input);
+            long start = System.nanoTime();
+            BatchCompiler.Result result = new BatchCompiler(jobs, optimize, unroll, cache)
+                    .compile(sources, root, Path.of(outDir));
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            for (BatchCompiler.Diagnostic d : result.diagnostics()) {
+                System.err.println(d);
+            }
+            IO.println("Compiled " + result.compiled() + " of " + result.files() + " files (" + result.words()
+                    + " words) into " + outDir + " in " + millis + " ms on " + jobs + " threads");
+            if (cache != null) IO.println(cache.hits() + " cache hits, " + cache.misses() + " misses");
+            return;
+        }
+
+        if (stream) {
+            // Words go straight to the object file; read it back below for --dump or --run
+            int count;
+            try {
+                count = StreamingCompiler.compile(new File(filename), Path.of(objName));
+            } catch (RuntimeException e) {
+                System.err.println("Parse error: " + e.getMessage());
+                return;
+            }
+            IO.println("Wrote " + count + " words to " + objName);
+            if (!dump && !run) return;
+            filename = objName;
+        }
+
+        if (emitModule) {
+            ObjectModule compiled;
+            try {
+                compiled = new BatchCompiler(1, optimize, unroll).compileModule(Path.of(filename));
+            } catch (RuntimeException e) {
+                System.err.println("Parse error: " + e.getMessage());
+                return;
+            }
+            ObjectFile.write(Path.of(objName), compiled);
+            IO.println("Wrote " + compiled + " to " + objName);
+            return;
+        }
 
-        IO.println("Tokens:\n\n");
-        for (Token t : tokens) {
-            IO.println(t);
+        boolean loading = filename.endsWith(ObjectFile.EXTENSION);
+        int[] words = null;
+        IntBuffer code = null;
+        int[] image;
+        String[] names;
+        String key = null;
+        CompileCache.Entry cached = null;
+        // The bytes that were hashed are the ones lexed on a miss
+        byte[] source = null;
+        if (cache != null && !link && !loading) {
+            source = Files.readAllBytes(Path.of(filename));
+            key = CompileCache.key(source, optimize, unroll);
+            cached = cache.get(key);
+        }
+        if (loading) {
+            ObjectFile object;
+            try {
+                object = ObjectFile.load(Path.of(filename));
+            } catch (IOException e) {
+                System.err.println("Object file error: " + e.getMessage());
+                return;
+            }
+            if (object.kind() != ObjectFile.PROGRAM) {
+                System.err.println("Object file error: " + filename + " holds a module; link it with --link");
+                return;
+            }
+            code = object.code();
+            image = object.memory();
+            names = object.dataNames();
+            IO.println("Loaded " + code.remaining() + " words from " + filename);
+        } else if (link) {
+            // filename is a directory of sources or a file listing them, linked in that order
+            List<BatchCompiler.Diagnostic> diagnostics = new ArrayList<>();
+            List<ObjectModule> modules = new BatchCompiler(jobs, optimize, unroll)
+                    .compileModules(BatchCompiler.sources(Path.of(filename)), diagnostics);
+            if (!diagnostics.isEmpty()) {
+                for (BatchCompiler.Diagnostic d : diagnostics) {
+                    System.err.println(d);
+                }
+                return;
+            }
+            for (ObjectModule module : modules) {
+                IO.println(module);
+            }
+            Linker.Program program;
+            try {
+                program = Linker.link(modules);
+            } catch (RuntimeException e) {
+                System.err.println("Link error: " + e.getMessage());
+                return;
+            }
+            words = program.code();
+            image = program.memory();
+            names = program.dataNames();
+            if (optimize) {
+                Peephole peephole = new Peephole();
+                words = peephole.optimize(words);
+                IO.println("Peephole removed " + peephole.removed() + " words");
+            }
+        } else if (cached != null) {
+            // Same source and options as a compile before: nothing to lex, parse or generate
+            IO.println("Cache hit: " + key);
+            if (cached.atoms() != null) {
+                IO.println("Atoms:\n\n");
+                for (Atom atom : cached.atoms()) {
+                    IO.println(atom);
+                }
+            }
+            words = cached.code();
+            image = cached.memory();
+            names = cached.dataNames();
+        } else {
+            TokenBuffer tokens = source != null
+                    ? new TokenStream(ByteBuffer.wrap(source)).drain()
+                    : lexer.tokenizeBuffer(new File(filename));
+
+            IO.println("Tokens:\n\n");
+            for (int i = 0; i < tokens.size(); i++) {
+                IO.println(tokens.token(i));
+            }
+            IO.println("-----------------------------------");
+            IO.println("Atoms:\n\n");
+
+            Parser parser = new Parser(tokens);
+            try {
+                parser.parseProgram();
+            } catch (RuntimeException e) {
+                System.err.println("Parse error: " + e.getMessage());
+                return;
+            }
+            parser.printAtoms();
+            AtomBuffer atoms = parser.atoms;
+            if (optimize) {
+                atoms = AtomOptimizer.optimize(atoms, new LoopUnroller(unroll, LoopUnroller.DEFAULT_BUDGET));
+                IO.println("Optimized Atom Stream:");
+                for (int i = 0; i < atoms.size(); i++) {
+                    IO.println(atoms.atom(i));
+                }
+            }
+
+            CodeGenerator codeGen = new CodeGenerator();
+            words = optimize ? codeGen.generateWithRegisters(atoms) : codeGen.generate(atoms);
+            if (optimize) {
+                Peephole peephole = new Peephole();
+                words = peephole.optimize(words);
+                IO.println("Peephole removed " + peephole.removed() + " words");
+            }
+            image = codeGen.initialMemory();
+            names = codeGen.dataNames();
+            if (cache != null) {
+                List<Atom> finalAtoms = new ArrayList<>();
+                for (int i = 0; i < atoms.size(); i++) {
+                    finalAtoms.add(atoms.atom(i));
+                }
+                cache.put(key, new CompileCache.Entry(words, image, names, finalAtoms));
+            }
+        }
+        if (words != null) {
+            ObjectFile.write(Path.of(objName), words, image, names);
+            IO.println("Wrote " + words.length + " words to " + objName);
+            code = IntBuffer.wrap(words);
+        }
+        if (dump) {
+            IO.println("-----------------------------------");
+            IO.println("Machine Code:\n\n");
+            for (int pc = code.position(); pc < code.limit(); pc++) {
+                System.out.println(Instruction.toBinary32(code.get(pc)));
+            }
         }
-        IO.println("-----------------------------------");
-        IO.println("Atoms:\n\n");
 
-        Parser parser = new Parser(tokens);
-        parser.parseProgram();
-        parser.printAtoms();
+        if (run) {
+            VirtualMachine vm = VirtualMachine.load(code);
+            int[] memory = vm.newMemory(image);
+            long start = System.nanoTime();
+            long steps = -1;
+            CompiledProgram compiled = null;
+            if (jit) {
+                int[] jitted = new int[code.remaining()];
+                code.get(code.position(), jitted);
+                try {
+                    compiled = JitCompiler.compile(jitted);
+                } catch (IllegalArgumentException e) {
+                    // Too large for one JVM method: the interpreter runs any program
+                    IO.println("JIT rejected the program (" + e.getMessage() + "); running it on the interpreter");
+                }
+            }
+            try {
+                if (compiled != null) compiled.run(memory);
+                else steps = vm.run(memory);
+            } catch (RuntimeException e) {
+                System.err.println("Runtime error: " + e.getMessage());
+                return;
+            }
+            long nanos = System.nanoTime() - start;
 
-        IO.println("-----------------------------------");
-        IO.println("Machine Code:\n\n");
-        CodeGenerator codeGen = new CodeGenerator();
-        List<Integer> words = codeGen.generate(parser.atoms);
-        for (int w : words) {
-            System.out.println(Instruction.toBinary32(w));
+            IO.println("-----------------------------------");
+            IO.println("Run:\n\n");
+            for (int addr = 0; addr < names.length; addr++) {
+                IO.println(names[addr] + " = " + memory[addr]);
+            }
+            if (compiled != null) IO.println("compiled and ran in " + nanos / 1000 + " us");
+            else IO.println(steps + " instructions in " + nanos / 1000 + " us");
         }
     } catch (FileNotFoundException e) {
         System.err.println("Error: file not found: " + filename);
         IO.println("Create source code in a file called: " + filename);
+    } catch (IOException e) {
+        System.err.println("Error: could not read " + filename + ": " + e.getMessage());
     } catch (RuntimeException e) {
-        System.err.println("Parse error: " + e.getMessage());
+        System.err.println("Error: " + e.getMessage());
     }
 }
@@ -0,0 +1,337 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Binary object file: a program ready to load, or an {@link ObjectModule}
+ * waiting for {@link Linker}.
+ *
+ * Everything is little-endian. A 32-byte header holds the magic "CJOB", the
+ * format version and kind as two shorts, and the counts of code words, data
+ * cells, code relocations, data relocations, imports and labels. Then come
+ * the int sections in that order, so each stays 4-byte aligned: code, the
+ * initial data memory, the relocation lists and the import sites. Last are
+ * the strings, each a short byte count and UTF-8: per data cell its
+ * SymbolTable kind as a byte and its name, per label its address and name,
+ * per import the label name. A program has no relocations or imports.
+ *
+ * Files are written with one bulk put per section and loaded by mapping them
+ * read-only; {@link #code} is a view of the mapping, not a copy. A
+ * {@link ProgramWriter} instead takes code a word at a time and fills in the
+ * header last.
+ */
+public final class ObjectFile {
+    public static final String EXTENSION = ".obj";
+    public static final int PROGRAM = 0;
+    public static final int MODULE = 1;
+
+    private static final int MAGIC = 0x424F4A43; // "CJOB" in file order
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+
+    private final int kind;
+    private final IntBuffer code;
+    private final IntBuffer memory;
+    private final int[] codeRelocations;
+    private final int[] dataRelocations;
+    private final int[] importSites;
+    private final byte[] dataKinds;
+    private final String[] dataNames;
+    private final Map<String, Integer> labels;
+    private final String[] importNames;
+
+    private ObjectFile(int kind, IntBuffer code, IntBuffer memory, int[] codeRelocations, int[] dataRelocations,
+            int[] importSites, byte[] dataKinds, String[] dataNames, Map<String, Integer> labels,
+            String[] importNames) {
+        this.kind = kind;
+        this.code = code;
+        this.memory = memory;
+        this.codeRelocations = codeRelocations;
+        this.dataRelocations = dataRelocations;
+        this.importSites = importSites;
+        this.dataKinds = dataKinds;
+        this.dataNames = dataNames;
+        this.labels = labels;
+        this.importNames = importNames;
+    }
+
+    /**
+     * Writes a program: code, the memory it starts from and the name of each
+     * cell, as {@link CodeGenerator} or {@link Linker} produce them.
+     */
+    public static void write(Path path, int[] code, int[] memory, String[] dataNames) throws IOException {
+        write(path, PROGRAM, code, memory, new int[0], new int[0], new int[0], new byte[dataNames.length], dataNames,
+                Map.of(), new String[0]);
+    }
+
+    public static void write(Path path, ObjectModule module) throws IOException {
+        write(path, MODULE, module.code, module.dataValues, module.codeRelocations, module.dataRelocations,
+                module.importSites, module.dataKinds, module.dataNames, module.exports, module.importNames);
+    }
+
+    private static void write(Path path, int kind, int[] code, int[] memory, int[] codeRelocations,
+            int[] dataRelocations, int[] importSites, byte[] dataKinds, String[] dataNames,
+            Map<String, Integer> labels, String[] importNames) throws IOException {
+        byte[][] names = encode(dataNames);
+        byte[][] labelNames = encode(labels.keySet().toArray(new String[0]));
+        byte[][] imports = encode(importNames);
+        long bytes = HEADER_BYTES + 4L * (code.length + memory.length + codeRelocations.length
+                + dataRelocations.length + importSites.length + labels.size())
+                + dataKinds.length + size(names) + size(labelNames) + size(imports);
+        if (bytes > Integer.MAX_VALUE) throw new IllegalArgumentException("Object file too large: " + bytes + " bytes");
+
+        ByteBuffer buf = ByteBuffer.allocate((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+        putHeader(buf, kind, code.length, memory.length, codeRelocations.length, dataRelocations.length,
+                importSites.length, labels.size());
+        putInts(buf, code);
+        putInts(buf, memory);
+        putInts(buf, codeRelocations);
+        putInts(buf, dataRelocations);
+        putInts(buf, importSites);
+        for (int i = 0; i < names.length; i++) {
+            buf.put(dataKinds[i]);
+            putString(buf, names[i]);
+        }
+        int i = 0;
+        for (int address : labels.values()) {
+            buf.putInt(address);
+            putString(buf, labelNames[i++]);
+        }
+        for (byte[] name : imports) putString(buf, name);
+        buf.flip();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) channel.write(buf);
+        }
+    }
+
+    private static void putHeader(ByteBuffer buf, int kind, int... counts) {
+        buf.putInt(MAGIC).putShort((short) VERSION).putShort((short) kind);
+        for (int count : counts) buf.putInt(count);
+    }
+
+    private static void putInts(ByteBuffer buf, int[] values) {
+        buf.asIntBuffer().put(values);
+        buf.position(buf.position() + 4 * values.length);
+    }
+
+    private static byte[][] encode(String[] strings) {
+        byte[][] bytes = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            bytes[i] = strings[i] == null ? new byte[0] : strings[i].getBytes(StandardCharsets.UTF_8);
+            if (bytes[i].length > 0xFFFF) throw new IllegalArgumentException("Name too long: " + strings[i]);
+        }
+        return bytes;
+    }
+
+    private static long size(byte[][] strings) {
+        long size = 2L * strings.length;
+        for (byte[] s : strings) size += s.length;
+        return size;
+    }
+
+    private static void putString(ByteBuffer buf, byte[] s) {
+        buf.putShort((short) s.length).put(s);
+    }
+
+    public static ProgramWriter programWriter(Path path) throws IOException {
+        return new ProgramWriter(path);
+    }
+
+    /**
+     * Writes a program whose code arrives a word at a time, as from
+     * {@link StreamingCompiler}, through one fixed buffer rather than holding
+     * all of it. Call {@link #finish} with the data once the code is done.
+     */
+    public static final class ProgramWriter implements IntConsumer, Closeable {
+        private static final int BUFFER_BYTES = 1 << 16;
+
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private int words;
+
+        private ProgramWriter(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            channel.position(HEADER_BYTES);
+        }
+
+        /**
+         * Appends a code word. A failed write is thrown as an
+         * UncheckedIOException, since IntConsumer cannot throw IOException.
+         */
+        @Override
+        public void accept(int word) {
+            if (!buf.hasRemaining()) {
+                try {
+                    drain();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            buf.putInt(word);
+            words++;
+        }
+
+        public int words() {
+            return words;
+        }
+
+        /**
+         * Writes the data sections after the code, then the header.
+         */
+        public void finish(int[] memory, String[] dataNames) throws IOException {
+            drain();
+            byte[][] names = encode(dataNames);
+            long bytes = 4L * memory.length + names.length + size(names);
+            if (HEADER_BYTES + 4L * words + bytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Object file too large: " + (HEADER_BYTES + 4L * words + bytes)
+                        + " bytes");
+            }
+            ByteBuffer data = ByteBuffer.allocate((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+            putInts(data, memory);
+            for (byte[] name : names) {
+                data.put((byte) 0);
+                putString(data, name);
+            }
+            data.flip();
+            while (data.hasRemaining()) channel.write(data);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            putHeader(header, PROGRAM, words, memory.length, 0, 0, 0, 0);
+            header.flip();
+            for (long at = 0; header.hasRemaining(); ) at += channel.write(header, at);
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) channel.write(buf);
+            buf.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Maps the file and checks its header and section sizes. The mapping
+     * stays valid after the file is closed.
+     */
+    public static ObjectFile load(Path path) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buf = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.limit() < HEADER_BYTES || buf.getInt(0) != MAGIC) throw new IOException("Not an object file: " + path);
+        if (buf.getShort(4) != VERSION) {
+            throw new IOException("Unsupported object file version " + buf.getShort(4) + ": " + path);
+        }
+        int kind = buf.getShort(6);
+        int[] counts = new int[6];
+        long ints = 0;
+        for (int k = 0; k < counts.length; k++) {
+            counts[k] = buf.getInt(8 + 4 * k);
+            if (counts[k] < 0) throw new IOException("Corrupt object file: " + path);
+            if (k < 5) ints += counts[k];
+        }
+        if (HEADER_BYTES + 4 * ints > buf.limit()) throw new IOException("Truncated object file: " + path);
+
+        try {
+            buf.position(HEADER_BYTES);
+            IntBuffer code = ints(buf, counts[0]);
+            IntBuffer memory = ints(buf, counts[1]);
+            int[] codeRelocations = toArray(ints(buf, counts[2]));
+            int[] dataRelocations = toArray(ints(buf, counts[3]));
+            int[] importSites = toArray(ints(buf, counts[4]));
+            byte[] dataKinds = new byte[counts[1]];
+            String[] dataNames = new String[counts[1]];
+            for (int i = 0; i < dataNames.length; i++) {
+                dataKinds[i] = buf.get();
+                dataNames[i] = getString(buf);
+            }
+            Map<String, Integer> labels = new LinkedHashMap<>();
+            for (int i = 0; i < counts[5]; i++) {
+                int address = buf.getInt();
+                labels.put(getString(buf), address);
+            }
+            String[] importNames = new String[importSites.length];
+            for (int i = 0; i < importNames.length; i++) importNames[i] = getString(buf);
+            return new ObjectFile(kind, code, memory, codeRelocations, dataRelocations, importSites, dataKinds,
+                    dataNames, labels, importNames);
+        } catch (RuntimeException e) {
+            throw new IOException("Truncated object file: " + path, e);
+        }
+    }
+
+    /**
+     * The next count ints of buf as a view, moving buf past them.
+     */
+    private static IntBuffer ints(ByteBuffer buf, int count) {
+        IntBuffer view = buf.slice(buf.position(), 4 * count).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        buf.position(buf.position() + 4 * count);
+        return view;
+    }
+
+    private static int[] toArray(IntBuffer ints) {
+        int[] array = new int[ints.remaining()];
+        ints.get(0, array);
+        return array;
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] s = new byte[Short.toUnsignedInt(buf.getShort())];
+        buf.get(s);
+        return new String(s, StandardCharsets.UTF_8);
+    }
+
+    public int kind() {
+        return kind;
+    }
+
+    /**
+     * The code words, read straight from the mapping.
+     */
+    public IntBuffer code() {
+        return code.duplicate();
+    }
+
+    /**
+     * A copy of the initial data memory, for a run to update.
+     */
+    public int[] memory() {
+        return toArray(memory);
+    }
+
+    public String[] dataNames() {
+        return dataNames.clone();
+    }
+
+    public Map<String, Integer> labels() {
+        return Collections.unmodifiableMap(labels);
+    }
+
+    /**
+     * The module this file holds, named by its first label.
+     */
+    public ObjectModule toModule() {
+        if (kind != MODULE || labels.isEmpty()) throw new IllegalStateException("Not a module object file");
+        return new ObjectModule(labels.keySet().iterator().next(), toArray(code), codeRelocations, dataRelocations,
+                importSites, importNames, new LinkedHashMap<>(labels), dataKinds, dataNames, toArray(memory));
+    }
+}
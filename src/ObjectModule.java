@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One separately compiled source file: machine code and data laid out from
+ * address 0, plus what {@link Linker} needs to place them in a program.
+ *
+ * Every JMP and BR address is relative to the module's code and every memory
+ * operand to its data; the relocation lists say which words hold which.
+ * Data cells are variables, which modules share by name, literals too wide
+ * for an immediate, shared by value, or temps, which stay private, so only
+ * variables carry values from one module to another.
+ *
+ * Linked modules run one after another: control enters a module at its first
+ * word, exported under the module's name, and leaves by running off its end,
+ * which is where an HLT now jumps to. A jump to a label the module does not
+ * define is an import, resolved against the labels other modules define by
+ * name (labels the parser makes up are never exported). A module defining
+ * named labels skips the atom optimizer, which cannot see that other modules
+ * enter there, but still gets registers allocated. The source language has
+ * no way to name a label yet, so only atoms built through the API import or
+ * export anything but the module itself.
+ */
+public final class ObjectModule {
+    private static final int NONE = SymbolTable.NONE;
+
+    public final String name;
+    final int[] code;
+    // Indices of words whose address is a code address, or a data address
+    final int[] codeRelocations;
+    final int[] dataRelocations;
+    // Jumps to labels of other modules: word index and label name
+    final int[] importSites;
+    final String[] importNames;
+    // Label name to code address, starting with the module's own name at 0
+    final Map<String, Integer> exports;
+    // Per data cell: SymbolTable kind, name, and value for a literal
+    final byte[] dataKinds;
+    final String[] dataNames;
+    final int[] dataValues;
+
+    ObjectModule(String name, int[] code, int[] codeRelocations, int[] dataRelocations, int[] importSites,
+            String[] importNames, Map<String, Integer> exports, byte[] dataKinds, String[] dataNames,
+            int[] dataValues) {
+        this.name = name;
+        this.code = code;
+        this.codeRelocations = codeRelocations;
+        this.dataRelocations = dataRelocations;
+        this.importSites = importSites;
+        this.importNames = importNames;
+        this.exports = exports;
+        this.dataKinds = dataKinds;
+        this.dataNames = dataNames;
+        this.dataValues = dataValues;
+    }
+
+    /**
+     * Compiles atoms into a module; optimize and unroll are as for the -O and
+     * --unroll options of {@link Main}.
+     */
+    public static ObjectModule compile(String name, AtomBuffer atoms, boolean optimize, int unroll) {
+        SymbolTable symbols = atoms.symbols;
+        List<Integer> imports = undefinedLabels(atoms);
+        if (!imports.isEmpty()) atoms = withStubs(atoms, imports);
+        if (optimize && !definesNamedLabels(atoms)) {
+            atoms = AtomOptimizer.optimize(atoms, new LoopUnroller(unroll, LoopUnroller.DEFAULT_BUDGET));
+        }
+        CodeGenerator gen = new CodeGenerator();
+        int[] code = optimize ? gen.generateWithRegisters(atoms) : gen.generate(atoms);
+
+        // The stub of each import is an HLT word at its label
+        int[] stubLabel = new int[code.length + 1];
+        for (int label : imports) {
+            int addr = gen.labelAddress(label);
+            if (addr >= 0 && addr < code.length) stubLabel[addr] = label;
+        }
+
+        List<Integer> codeRelocations = new ArrayList<>();
+        List<Integer> dataRelocations = new ArrayList<>();
+        List<Integer> importSites = new ArrayList<>();
+        List<String> importNames = new ArrayList<>();
+        for (int pc = 0; pc < code.length; pc++) {
+            int word = code[pc];
+            if (stubLabel[pc] != NONE) {
+                // Left in place, since the layout may fall into it
+                code[pc] = Instruction.jmp(0);
+                importSites.add(pc);
+                importNames.add(symbols.name(stubLabel[pc]));
+            } else if (Instruction.opcode(word) == Instruction.OPC_HLT) {
+                code[pc] = Instruction.jmp(code.length);
+                codeRelocations.add(pc);
+            } else if (Instruction.isJump(word) && stubLabel[Instruction.address(word)] != NONE) {
+                // Straight to the other module rather than through the stub
+                importSites.add(pc);
+                importNames.add(symbols.name(stubLabel[Instruction.address(word)]));
+            } else if (Instruction.isJump(word)) {
+                codeRelocations.add(pc);
+            } else if (Instruction.addressesData(word)) {
+                dataRelocations.add(pc);
+            }
+        }
+
+        Map<String, Integer> exports = new LinkedHashMap<>();
+        exports.put(name, 0);
+        for (int id = 1; id < symbols.size(); id++) {
+            if (!symbols.isNamedLabel(id) || imports.contains(id) || gen.labelAddress(id) < 0) continue;
+            if (exports.put(symbols.name(id), gen.labelAddress(id)) != null) {
+                throw new IllegalArgumentException("Label " + symbols.name(id) + " clashes with module " + name);
+            }
+        }
+
+        int[] cells = gen.dataSymbols();
+        byte[] dataKinds = new byte[cells.length];
+        String[] dataNames = new String[cells.length];
+        int[] dataValues = new int[cells.length];
+        for (int addr = 0; addr < cells.length; addr++) {
+            int id = cells[addr];
+            dataKinds[addr] = (byte) symbols.kind(id);
+            dataNames[addr] = symbols.name(id);
+            if (symbols.isLiteral(id)) dataValues[addr] = symbols.literalValue(id);
+        }
+
+        return new ObjectModule(name, code, toArray(codeRelocations), toArray(dataRelocations), toArray(importSites),
+                importNames.toArray(new String[0]), exports, dataKinds, dataNames, dataValues);
+    }
+
+    public int codeSize() {
+        return code.length;
+    }
+
+    public int dataSize() {
+        return dataKinds.length;
+    }
+
+    /**
+     * Labels jumped to in atoms but never defined there, in order of first use.
+     */
+    private static List<Integer> undefinedLabels(AtomBuffer atoms) {
+        boolean[] defined = new boolean[atoms.symbols.size()];
+        for (int i = 0; i < atoms.size(); i++) {
+            if (atoms.op(i) == AtomOp.LBL) defined[atoms.label(i)] = true;
+        }
+        List<Integer> undefined = new ArrayList<>();
+        for (int i = 0; i < atoms.size(); i++) {
+            AtomOp op = atoms.op(i);
+            int label = atoms.label(i);
+            if ((op == AtomOp.JMP || op == AtomOp.TST) && !defined[label] && !undefined.contains(label)) {
+                undefined.add(label);
+            }
+        }
+        return undefined;
+    }
+
+    private static boolean definesNamedLabels(AtomBuffer atoms) {
+        for (int i = 0; i < atoms.size(); i++) {
+            if (atoms.op(i) == AtomOp.LBL && atoms.symbols.isNamedLabel(atoms.label(i))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copy of atoms that halts at its end and then defines each import as an
+     * HLT of its own, so the labels resolve and nothing falls into them.
+     */
+    private static AtomBuffer withStubs(AtomBuffer atoms, List<Integer> imports) {
+        AtomBuffer out = new AtomBuffer(atoms.symbols);
+        for (int i = 0; i < atoms.size(); i++) {
+            out.emit(atoms.op(i), atoms.src1(i), atoms.src2(i), atoms.dest(i), atoms.cmp(i), atoms.label(i));
+        }
+        out.emit(AtomOp.HLT, NONE, NONE, NONE, AtomBuffer.NO_CMP, NONE);
+        for (int label : imports) {
+            out.emit(AtomOp.LBL, NONE, NONE, NONE, AtomBuffer.NO_CMP, label);
+            out.emit(AtomOp.HLT, NONE, NONE, NONE, AtomBuffer.NO_CMP, NONE);
+        }
+        return out;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectModule(" + name + ", " + code.length + " words, " + dataKinds.length + " cells, exports "
+                + exports.keySet() + ", imports " + new LinkedHashSet<>(Arrays.asList(importNames)) + ")";
+    }
+}
@@ -1,313 +1,905 @@
 import java.util.*;
 
 public class Parser {
-    private final List<Token> tokens;
-    private int pos = 0;
+    private static final int EOF = TokenKind.EOF.code();
+    private static final int KEYWORD = TokenKind.KEYWORD.code();
+    private static final int IDENTIFIER = TokenKind.IDENTIFIER.code();
+    private static final int LITERAL = TokenKind.LITERAL.code();
+
+    private static final int NONE = SymbolTable.NONE;
+    private static final int NO_CMP = AtomBuffer.NO_CMP;
+
+    private final TokenSource tokens;
+    private AtomSink sink;
+
+    public final SymbolTable symbols;
+    public final AtomBuffer atoms;
+    private final int zero;
+    // Where the TST of the condition being parsed iteratively branches to
+    private int condLabel = NONE;
+    // Statement lists and groups open around the current token; once there are
+    // recursionLimit of them, the next one is parsed by the non-recursive mode
+    private int nesting = 0;
+    private int recursionLimit = Integer.MAX_VALUE;
+    private boolean quiet = false;
+
+    /**
+     * Parses from tokens into the {@link #atoms} buffer.
+     */
+    public Parser(TokenSource tokens) {
+        this.tokens = tokens;
+        this.symbols = new SymbolTable();
+        this.atoms = new AtomBuffer(symbols);
+        this.sink = atoms;
+        this.zero = symbols.literal("0");
+    }
+
+    /**
+     * Streaming parser: tokens are pulled as needed and every atom goes straight
+     * to sink, with names interned in symbols; {@link #atoms} stays empty.
+     * Temps and labels are numbered by symbols, so parsers sharing a table
+     * never reuse a name.
+     */
+    public Parser(TokenSource tokens, AtomSink sink, SymbolTable symbols) {
+        this.tokens = tokens;
+        this.symbols = symbols;
+        this.atoms = new AtomBuffer(symbols);
+        this.sink = sink;
+        this.zero = symbols.literal("0");
+    }
 
-    public List<Atom> atoms = new ArrayList<>();
-    private int tempCounter = 0;
-    private int labelCounter = 0;
-    private String lastRelOp = null;
+    public Parser(TokenBuffer tokens) {
+        this(tokens.cursor());
+    }
 
     public Parser(List<Token> tokens) {
-        this.tokens = tokens;
+        this(TokenBuffer.of(tokens));
+    }
+
+    private int kind() {
+        return tokens.kind();
+    }
+
+    private int id() {
+        return tokens.id();
+    }
+
+    private String text() {
+        return tokens.text();
     }
 
     private Token current() {
-        if (pos < tokens.size()) return tokens.get(pos);
-        return new Token("EOF", "EOF");
+        return tokens.token();
+    }
+
+    private boolean match(int id) {
+        if (id() == id) {
+            tokens.advance();
+            return true;
+        }
+        return false;
     }
 
-    private boolean match(String expected) {
-        Token t = current();
-        if (t.value.equals(expected) || t.type.equals(expected)) {
-            pos++;
+    private boolean matchKind(int kind) {
+        if (kind() == kind) {
+            tokens.advance();
             return true;
         }
         return false;
     }
 
-    private void expect(String expected) {
-        if (!match(expected)) {
-            throw new RuntimeException("Syntax Error: Expected '" + expected + "' but found " + current());
+    private void expect(int id) {
+        if (!match(id)) {
+            throw new RuntimeException("Syntax Error: Expected '" + Lexeme.spelling(id) + "' but found " + current());
+        }
+    }
+
+    private void expectKind(int kind) {
+        if (!matchKind(kind)) {
+            throw new RuntimeException("Syntax Error: Expected '" + TokenKind.of(kind) + "' but found " + current());
         }
     }
 
-    private boolean isType(Token t) {
-        return t.value.equals("num") || t.value.equals("dec");
+    private boolean isType(int id) {
+        return id == Lexeme.NUM || id == Lexeme.DEC;
     }
 
-    private boolean isRelOp(Token t) {
-        return Arrays.asList(">", ">=", "<", "<=", "=", "!").contains(t.value);
+    private boolean isRelOp(int id) {
+        return switch (id) {
+            case Lexeme.GT, Lexeme.GE, Lexeme.LT, Lexeme.LE, Lexeme.EQ, Lexeme.BANG -> true;
+            default -> false;
+        };
     }
 
-    private boolean isAddOp(Token t) {
-        return Arrays.asList("+", "-").contains(t.value);
+    private boolean isAddOp(int id) {
+        return id == Lexeme.PLUS || id == Lexeme.MINUS;
     }
 
-    private boolean isMulOp(Token t) {
-        return Arrays.asList("*", "/").contains(t.value);
+    private boolean isMulOp(int id) {
+        return id == Lexeme.STAR || id == Lexeme.SLASH;
     }
 
-    private String newTemp() {
-        return "t" + (tempCounter++);
+    private int newTemp() {
+        return symbols.newTemp();
     }
 
-    private String newLabel() {
-        return "L" + (labelCounter++);
+    private int newLabel() {
+        return symbols.newLabel();
     }
 
-    private Integer getCmpCode(String op) {
+    private int getCmpCode(int op) {
         return switch (op) {
-            case "=" -> 1;
-            case "<" -> 2;
-            case ">" -> 3;
-            case "<=" -> 4;
-            case ">=" -> 5;
-            case "!=", "!" -> 6;
+            case Lexeme.EQ -> 1;
+            case Lexeme.LT -> 2;
+            case Lexeme.GT -> 3;
+            case Lexeme.LE -> 4;
+            case Lexeme.GE -> 5;
+            case Lexeme.BANG -> 6;
             default -> 0;
         };
     }
 
+    /**
+     * Compare code for the TST that skips a block: it branches when the
+     * condition is false, so the relation is inverted. A condition without a
+     * relational operator is false when its value is 0.
+     */
+    private int branchCode(int op) {
+        return switch (getCmpCode(op)) {
+            case 1 -> 6;
+            case 2 -> 5;
+            case 3 -> 4;
+            case 4 -> 3;
+            case 5 -> 2;
+            default -> 1;
+        };
+    }
+
+    /**
+     * Stops the parse methods from announcing success on System.out.
+     */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
     public void printAtoms() {
         System.out.println("Atom Stream:");
-        for (Atom a : atoms) {
-            System.out.println(a);
+        for (int i = 0; i < atoms.size(); i++) {
+            System.out.println(atoms.atom(i));
         }
         System.out.println("-----------------------------------");
     }
 
     public void parseProgram() {
         parseStmtList();
-        if (!current().type.equals("EOF") && !current().value.equals("EOF"))
+        if (kind() != EOF)
             throw new RuntimeException("Unexpected tokens after end of program: " + current());
-        System.out.println("Parsing complete: program is syntactically correct.");
+        if (!quiet) System.out.println("Parsing complete: program is syntactically correct.");
+    }
+
+    /**
+     * Parses one statement if the current token starts one.
+     */
+    boolean parseStatement() {
+        if (!startsStmt()) return false;
+        parseStmt();
+        return true;
     }
 
     private void parseStmtList() {
-        while (startsStmt(current())) {
+        if (nesting == recursionLimit) {
+            parseIteratively(S_STMT_LIST);
+            return;
+        }
+        nesting++;
+        while (startsStmt()) {
             parseStmt();
         }
+        nesting--;
     }
 
-    private boolean startsStmt(Token t) {
-        if (t == null) return false;
-        return isType(t) || t.type.equals("IDENTIFIER") || t.value.equals("if") || t.value.equals("for") || t.value.equals("during");
+    private boolean startsStmt() {
+        return switch (id()) {
+            case Lexeme.NUM, Lexeme.DEC, Lexeme.IF, Lexeme.FOR, Lexeme.DURING -> true;
+            default -> kind() == IDENTIFIER;
+        };
     }
 
     private void parseStmt() {
-        Token t = current();
-        if (isType(t)) {
-            parseVarDecl();
-            expect(";");
-        } else if (t.type.equals("IDENTIFIER")) {
-            parseAssignment();
-            expect(";");
-        } else if (t.value.equals("if")) {
-            parseIfStmt();
-        } else if (t.value.equals("for")) {
-            parseForStmt();
-        } else if (t.value.equals("during")) {
-            parseDuringStmt();
-        } else {
-            throw new RuntimeException("Invalid statement starting with " + t);
+        switch (id()) {
+            case Lexeme.NUM, Lexeme.DEC -> {
+                parseVarDecl();
+                expect(Lexeme.SEMI);
+            }
+            case Lexeme.IF -> parseIfStmt();
+            case Lexeme.FOR -> parseForStmt();
+            case Lexeme.DURING -> parseDuringStmt();
+            default -> {
+                if (kind() != IDENTIFIER) {
+                    throw new RuntimeException("Invalid statement starting with " + current());
+                }
+                parseAssignment();
+                expect(Lexeme.SEMI);
+            }
         }
     }
 
     private void parseVarDecl() {
-        match("KEYWORD");
-        String var = current().value;
-        expect("IDENTIFIER");
-        if (startsExpr(current())) {
-            String val = parseExpr();
-            atoms.add(new Atom(AtomOp.MOV, val, null, var, null, null));
+        matchKind(KEYWORD);
+        int var = symbols.variable(text());
+        expectKind(IDENTIFIER);
+        if (startsExpr()) {
+            int val = parseExpr();
+            sink.emit(AtomOp.MOV, val, NONE, var, NO_CMP, NONE);
         }
     }
 
     private void parseAssignment() {
-        String var = current().value;
-        expect("IDENTIFIER");
-        String val = parseExpr();
-        atoms.add(new Atom(AtomOp.MOV, val, null, var, null, null));
+        int var = symbols.variable(text());
+        expectKind(IDENTIFIER);
+        int val = parseExpr();
+        sink.emit(AtomOp.MOV, val, NONE, var, NO_CMP, NONE);
     }
 
     private void parseIfStmt() {
-        expect("if");
-        expect("|");
-        String cond = parseExpr();
-        expect("|");
-
-        String elseLabel = newLabel();
-        String endLabel = newLabel();
-        Integer cmpCode = lastRelOp != null ? getCmpCode(lastRelOp) : 0;
-
-        atoms.add(new Atom(AtomOp.TST, cond, "0", null, cmpCode, elseLabel));
-
-        expect("(");
+        expect(Lexeme.IF);
+        expect(Lexeme.PIPE);
+        int elseLabel = newLabel();
+        int endLabel = newLabel();
+        parseCondition(elseLabel);
+        expect(Lexeme.PIPE);
+
+        expect(Lexeme.LPAREN);
         parseStmtList();
-        expect(")");
-        atoms.add(new Atom(AtomOp.JMP, null, null, null, null, endLabel));
-        atoms.add(new Atom(AtomOp.LBL, null, null, null, null, elseLabel));
+        expect(Lexeme.RPAREN);
+        sink.emit(AtomOp.JMP, NONE, NONE, NONE, NO_CMP, endLabel);
+        sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, elseLabel);
 
         parseElifList();
         parseElseOpt();
 
-        atoms.add(new Atom(AtomOp.LBL, null, null, null, null, endLabel));
+        sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, endLabel);
     }
 
     private void parseElifList() {
-        while (current().value.equals("elif")) {
+        while (id() == Lexeme.ELIF) {
             parseElif();
         }
     }
 
     private void parseElif() {
-        expect("elif");
-        expect("|");
-        String cond = parseExpr();
-        expect("|");
+        expect(Lexeme.ELIF);
+        expect(Lexeme.PIPE);
+        int elseLabel = newLabel();
+        parseCondition(elseLabel);
+        expect(Lexeme.PIPE);
 
-        String elseLabel = newLabel();
-        Integer cmpCode = lastRelOp != null ? getCmpCode(lastRelOp) : 0;
-
-        atoms.add(new Atom(AtomOp.TST, cond, "0", null, cmpCode, elseLabel));
-
-        expect("(");
+        expect(Lexeme.LPAREN);
         parseStmtList();
-        expect(")");
-        atoms.add(new Atom(AtomOp.LBL, null, null, null, null, elseLabel));
+        expect(Lexeme.RPAREN);
+        sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, elseLabel);
     }
 
     private void parseElseOpt() {
-        if (current().value.equals("else")) {
-            expect("else");
-            expect("(");
+        if (id() == Lexeme.ELSE) {
+            expect(Lexeme.ELSE);
+            expect(Lexeme.LPAREN);
             parseStmtList();
-            expect(")");
+            expect(Lexeme.RPAREN);
         }
     }
 
+    /**
+     * The condition is evaluated at the top of every iteration; the update is
+     * parsed where it is written but its atoms are held back and emitted
+     * after the body.
+     */
     private void parseForStmt() {
-        expect("for");
-        expect("|");
+        expect(Lexeme.FOR);
+        expect(Lexeme.PIPE);
         parseForInit();
-        expect("|");
-        String condTemp = parseExpr();
-        expect("|");
-        String updateLabel = newLabel();
-        parseForUpdate();
-        expect("|");
+        expect(Lexeme.PIPE);
 
-        String loopStart = newLabel();
-        String loopEnd = newLabel();
-        Integer cmpCode = lastRelOp != null ? getCmpCode(lastRelOp) : 0;
+        int loopStart = newLabel();
+        int loopEnd = newLabel();
+        int updateLabel = newLabel();
 
-        atoms.add(new Atom(AtomOp.LBL, null, null, null, null, loopStart));
-        atoms.add(new Atom(AtomOp.TST, condTemp, "0", null, cmpCode, loopEnd));
+        sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, loopStart);
+        parseCondition(loopEnd);
+        expect(Lexeme.PIPE);
 
-        expect("(");
+        AtomSink outer = sink;
+        AtomBuffer update = new AtomBuffer(symbols);
+        sink = update;
+        parseForUpdate();
+        sink = outer;
+        expect(Lexeme.PIPE);
+
+        expect(Lexeme.LPAREN);
         parseStmtList();
-        expect(")");
+        expect(Lexeme.RPAREN);
 
-        atoms.add(new Atom(AtomOp.LBL, null, null, null, null, updateLabel));
-        parseForUpdate();
-        atoms.add(new Atom(AtomOp.JMP, null, null, null, null, loopStart));
-        atoms.add(new Atom(AtomOp.LBL, null, null, null, null, loopEnd));
+        sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, updateLabel);
+        update.replay(sink);
+        sink.emit(AtomOp.JMP, NONE, NONE, NONE, NO_CMP, loopStart);
+        sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, loopEnd);
     }
 
     private void parseForInit() {
-        if (isType(current())) parseVarDecl();
-        else if (current().type.equals("IDENTIFIER")) parseAssignment();
+        if (isType(id())) parseVarDecl();
+        else if (kind() == IDENTIFIER) parseAssignment();
     }
 
     private void parseForUpdate() {
-        if (current().type.equals("IDENTIFIER")) parseAssignment();
+        if (kind() == IDENTIFIER) parseAssignment();
     }
 
     private void parseDuringStmt() {
-        expect("during");
-        expect("|");
-        String condTemp = parseExpr();
-        expect("|");
+        expect(Lexeme.DURING);
+        expect(Lexeme.PIPE);
 
-        String loopStart = newLabel();
-        String loopEnd = newLabel();
-        Integer cmpCode = lastRelOp != null ? getCmpCode(lastRelOp) : 0;
+        int loopStart = newLabel();
+        int loopEnd = newLabel();
 
-        atoms.add(new Atom(AtomOp.LBL, null, null, null, null, loopStart));
-        atoms.add(new Atom(AtomOp.TST, condTemp, "0", null, cmpCode, loopEnd));
+        sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, loopStart);
+        parseCondition(loopEnd);
+        expect(Lexeme.PIPE);
 
-        expect("(");
+        expect(Lexeme.LPAREN);
         parseStmtList();
-        expect(")");
+        expect(Lexeme.RPAREN);
 
-        atoms.add(new Atom(AtomOp.JMP, null, null, null, null, loopStart));
-        atoms.add(new Atom(AtomOp.LBL, null, null, null, null, loopEnd));
+        sink.emit(AtomOp.JMP, NONE, NONE, NONE, NO_CMP, loopStart);
+        sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, loopEnd);
     }
 
-    private boolean startsExpr(Token t) {
-        return t != null && (t.type.equals("LITERAL") || t.type.equals("IDENTIFIER") || t.value.equals("|"));
+    private boolean startsExpr() {
+        int k = kind();
+        return k == LITERAL || k == IDENTIFIER || id() == Lexeme.PIPE;
     }
 
-    private String parseExpr() {
+    private int parseExpr() {
         return parseRelExpr();
     }
 
-    private String parseRelExpr() {
-        String left = parseAddExpr();
-        if (isRelOp(current())) {
-            String op = current().value;
-            match(op);
-            String right = parseAddExpr();
-            lastRelOp = op;
-            String result = newTemp();
-            atoms.add(new Atom(AtomOp.SUB, left, right, result, null, null));
+    /**
+     * A relation used as a value is the difference of its operands.
+     */
+    private int parseRelExpr() {
+        int left = parseAddExpr();
+        if (isRelOp(id())) {
+            tokens.advance();
+            int right = parseAddExpr();
+            int result = newTemp();
+            sink.emit(AtomOp.SUB, left, right, result, NO_CMP, NONE);
             return result;
         }
-        lastRelOp = null;
         return left;
     }
 
-    private String parseAddExpr() {
-        String left = parseMulExpr();
-        while (isAddOp(current())) {
-            String op = current().value;
-            match(op);
-            String right = parseMulExpr();
-            String result = newTemp();
-            if (op.equals("+")) atoms.add(new Atom(AtomOp.ADD, left, right, result, null, null));
-            else if (op.equals("-")) atoms.add(new Atom(AtomOp.SUB, left, right, result, null, null));
-            left = result;
+    /**
+     * Parses the condition of an if, elif or loop into the TST that branches
+     * to falseLabel when it does not hold. A relation compares its two
+     * operands directly; any other expression is false when it is 0.
+     */
+    private void parseCondition(int falseLabel) {
+        int left = parseAddExpr();
+        if (isRelOp(id())) {
+            int op = id();
+            tokens.advance();
+            int right = parseAddExpr();
+            sink.emit(AtomOp.TST, left, right, NONE, branchCode(op), falseLabel);
+        } else {
+            sink.emit(AtomOp.TST, left, zero, NONE, branchCode(Lexeme.NONE), falseLabel);
+        }
+    }
+
+    private int parseAddExpr() {
+        int left = parseMulExpr();
+        while (isAddOp(id())) {
+            int op = id();
+            tokens.advance();
+            left = arith(op, left, parseMulExpr());
         }
         return left;
     }
 
-    private String parseMulExpr() {
-        String left = parsePrimary();
-        while (isMulOp(current())) {
-            String op = current().value;
-            match(op);
-            String right = parsePrimary();
-            String result = newTemp();
-            if (op.equals("*")) atoms.add(new Atom(AtomOp.MUL, left, right, result, null, null));
-            else if (op.equals("/")) atoms.add(new Atom(AtomOp.DIV, left, right, result, null, null));
-            left = result;
+    private int parseMulExpr() {
+        int left = parsePrimary();
+        while (isMulOp(id())) {
+            int op = id();
+            tokens.advance();
+            left = arith(op, left, parsePrimary());
         }
         return left;
     }
 
-    private String parsePrimary() {
-        Token t = current();
-        if (t.type.equals("LITERAL") || t.type.equals("IDENTIFIER")) {
-            match(t.type);
-            return t.value;
-        } else if (t.value.equals("|")) {
-            expect("|");
-            String val = parseExpr();
-            expect("|");
+    /**
+     * Emits left op right for an additive or multiplicative operator into a
+     * new temp and returns the temp.
+     */
+    private int arith(int op, int left, int right) {
+        AtomOp atom = switch (op) {
+            case Lexeme.PLUS -> AtomOp.ADD;
+            case Lexeme.MINUS -> AtomOp.SUB;
+            case Lexeme.STAR -> AtomOp.MUL;
+            default -> AtomOp.DIV;
+        };
+        int result = newTemp();
+        sink.emit(atom, left, right, result, NO_CMP, NONE);
+        return result;
+    }
+
+    private int parsePrimary() {
+        int k = kind();
+        if (k == LITERAL || k == IDENTIFIER) {
+            int value = k == LITERAL ? symbols.literal(text()) : symbols.variable(text());
+            tokens.advance();
+            return value;
+        } else if (id() == Lexeme.PIPE) {
+            if (nesting == recursionLimit) return parseIteratively(S_PRIMARY);
+            expect(Lexeme.PIPE);
+            nesting++;
+            int val = parseExpr();
+            nesting--;
+            expect(Lexeme.PIPE);
             return val;
         } else {
-            throw new RuntimeException("Unexpected token in expression: " + t);
+            throw new RuntimeException("Unexpected token in expression: " + current());
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Non-recursive mode
+    //
+    // The same grammar and the same atom stream as the recursive descent
+    // above, run as a pushdown machine: each parse method is split into
+    // numbered states at its call sites, "calling" a rule pushes the state to
+    // resume at, and values that would live in a Java local across a call are
+    // parked on an explicit value stack (operator ids ride on the state stack,
+    // under the state that pops them). JVM stack use is constant, so nesting
+    // depth is limited only by heap. It is slower than the recursive methods,
+    // which hand over to it only past MAX_RECURSION.
+    // ---------------------------------------------------------------------
+
+    // Statement lists and groups, about five frames each at most
+    private static final int MAX_RECURSION = 256;
+
+    private static final int S_DONE = 0;
+    private static final int S_STMT_LIST = 1;
+    private static final int S_STMT = 2;
+    private static final int S_SEMI = 3;
+    private static final int S_VAR_DECL = 4;
+    private static final int S_ASSIGN = 5;
+    private static final int S_MOV = 6;
+    private static final int S_EXPR = 7;
+    private static final int S_REL_LEFT = 8;
+    private static final int S_REL_RIGHT = 9;
+    private static final int S_ADD = 10;
+    private static final int S_ADD_LOOP = 11;
+    private static final int S_ADD_RIGHT = 12;
+    private static final int S_MUL = 13;
+    private static final int S_MUL_LOOP = 14;
+    private static final int S_MUL_RIGHT = 15;
+    private static final int S_PRIMARY = 16;
+    private static final int S_GROUP_END = 17;
+    private static final int S_IF = 18;
+    private static final int S_IF_COND = 19;
+    private static final int S_IF_BODY = 20;
+    private static final int S_ELIF_LIST = 21;
+    private static final int S_ELIF_COND = 22;
+    private static final int S_ELIF_BODY = 23;
+    private static final int S_ELSE_OPT = 24;
+    private static final int S_ELSE_BODY = 25;
+    private static final int S_IF_END = 26;
+    private static final int S_FOR = 27;
+    private static final int S_FOR_INIT = 28;
+    private static final int S_FOR_COND = 29;
+    private static final int S_FOR_UPDATE = 30;
+    private static final int S_FOR_BODY = 31;
+    private static final int S_DURING = 32;
+    private static final int S_DURING_COND = 33;
+    private static final int S_DURING_BODY = 34;
+    private static final int S_COND = 35;
+    private static final int S_COND_LEFT = 36;
+    private static final int S_COND_RIGHT = 37;
+
+    private int[] stateStack = new int[64];
+    private int stateTop = 0;
+    private int[] valueStack = new int[64];
+    private int valueTop = 0;
+    // Update atoms of the enclosing for loops, emitted after each body. While
+    // an update is being captured, sink points at its buffer and heldSink at
+    // the real one (updates cannot nest, so one slot is enough).
+    private final ArrayDeque<AtomBuffer> updates = new ArrayDeque<>();
+    private AtomSink heldSink;
+
+    private void pushState(int state) {
+        if (stateTop == stateStack.length) stateStack = Arrays.copyOf(stateStack, stateTop * 2);
+        stateStack[stateTop++] = state;
+    }
+
+    private int popState() {
+        return stateStack[--stateTop];
+    }
+
+    private void pushValue(int value) {
+        if (valueTop == valueStack.length) valueStack = Arrays.copyOf(valueStack, valueTop * 2);
+        valueStack[valueTop++] = value;
+    }
+
+    private int popValue() {
+        return valueStack[--valueTop];
+    }
+
+    /**
+     * The current token as a value if it is a name or literal, consumed;
+     * otherwise NONE, with the token left for {@link #S_PRIMARY}.
+     */
+    private int operand() {
+        int k = kind();
+        if (k != LITERAL && k != IDENTIFIER) return NONE;
+        int value = k == LITERAL ? symbols.literal(text()) : symbols.variable(text());
+        tokens.advance();
+        return value;
+    }
+
+    /**
+     * Same as {@link #parseProgram()}, but statement lists and groups nested
+     * more than {@link #MAX_RECURSION} deep are parsed without recursion, so
+     * no input can overflow the JVM stack.
+     */
+    public void parseProgramIterative() {
+        recursionLimit = MAX_RECURSION;
+        parseProgram();
+    }
+
+    /**
+     * Parses the rule that starts at state start without recursion and
+     * returns its value, if it is an expression.
+     */
+    private int parseIteratively(int start) {
+        int result = NONE;
+        pushState(S_DONE);
+        int state = start;
+
+        while (state != S_DONE) {
+            switch (state) {
+                case S_STMT_LIST -> {
+                    if (startsStmt()) {
+                        pushState(S_STMT_LIST);
+                        state = S_STMT;
+                    } else {
+                        state = popState();
+                    }
+                }
+                case S_STMT -> {
+                    switch (id()) {
+                        case Lexeme.NUM, Lexeme.DEC -> {
+                            pushState(S_SEMI);
+                            state = S_VAR_DECL;
+                        }
+                        case Lexeme.IF -> state = S_IF;
+                        case Lexeme.FOR -> state = S_FOR;
+                        case Lexeme.DURING -> state = S_DURING;
+                        default -> {
+                            if (kind() != IDENTIFIER) {
+                                throw new RuntimeException("Invalid statement starting with " + current());
+                            }
+                            pushState(S_SEMI);
+                            state = S_ASSIGN;
+                        }
+                    }
+                }
+                case S_SEMI -> {
+                    expect(Lexeme.SEMI);
+                    state = popState();
+                }
+                case S_VAR_DECL -> {
+                    matchKind(KEYWORD);
+                    int var = symbols.variable(text());
+                    expectKind(IDENTIFIER);
+                    if (startsExpr()) {
+                        pushValue(var);
+                        pushState(S_MOV);
+                        state = S_EXPR;
+                    } else {
+                        state = popState();
+                    }
+                }
+                case S_ASSIGN -> {
+                    int var = symbols.variable(text());
+                    expectKind(IDENTIFIER);
+                    pushValue(var);
+                    pushState(S_MOV);
+                    state = S_EXPR;
+                }
+                case S_MOV -> {
+                    sink.emit(AtomOp.MOV, result, NONE, popValue(), NO_CMP, NONE);
+                    state = popState();
+                }
+
+                // Expressions: the value of a finished rule is left in result
+                case S_EXPR -> {
+                    pushState(S_REL_LEFT);
+                    state = S_ADD;
+                }
+                case S_REL_LEFT -> {
+                    if (isRelOp(id())) {
+                        pushState(id());
+                        tokens.advance();
+                        pushValue(result);
+                        pushState(S_REL_RIGHT);
+                        state = S_ADD;
+                    } else {
+                        state = popState();
+                    }
+                }
+                case S_REL_RIGHT -> {
+                    int left = popValue();
+                    popState();
+                    int temp = newTemp();
+                    sink.emit(AtomOp.SUB, left, result, temp, NO_CMP, NONE);
+                    result = temp;
+                    state = popState();
+                }
+
+                // Conditions: the TST to condLabel, see parseCondition
+                case S_COND -> {
+                    pushState(S_COND_LEFT);
+                    state = S_ADD;
+                }
+                case S_COND_LEFT -> {
+                    if (isRelOp(id())) {
+                        pushState(id());
+                        tokens.advance();
+                        pushValue(result);
+                        pushState(S_COND_RIGHT);
+                        state = S_ADD;
+                    } else {
+                        sink.emit(AtomOp.TST, result, zero, NONE, branchCode(Lexeme.NONE), condLabel);
+                        state = popState();
+                    }
+                }
+                case S_COND_RIGHT -> {
+                    int left = popValue();
+                    int op = popState();
+                    sink.emit(AtomOp.TST, left, result, NONE, branchCode(op), condLabel);
+                    state = popState();
+                }
+
+                // A name or literal is taken where it stands, and an operand
+                // that is not the left side of a product is applied at once, so
+                // the stacks are used only around products and groups
+                case S_ADD -> {
+                    int value = operand();
+                    if (value != NONE && !isMulOp(id())) {
+                        result = value;
+                        state = S_ADD_LOOP;
+                    } else {
+                        pushState(S_ADD_LOOP);
+                        result = value;
+                        state = S_MUL;
+                    }
+                }
+                case S_ADD_LOOP -> {
+                    int op = id();
+                    if (isAddOp(op)) {
+                        tokens.advance();
+                        int right = operand();
+                        if (right != NONE && !isMulOp(id())) {
+                            result = arith(op, result, right);
+                        } else {
+                            pushState(op);
+                            pushValue(result);
+                            pushState(S_ADD_RIGHT);
+                            result = right;
+                            state = S_MUL;
+                        }
+                    } else {
+                        state = popState();
+                    }
+                }
+                case S_ADD_RIGHT -> {
+                    int left = popValue();
+                    result = arith(popState(), left, result);
+                    state = S_ADD_LOOP;
+                }
+                // result is the first operand, or NONE if it is a group still to parse
+                case S_MUL -> {
+                    if (result == NONE) {
+                        pushState(S_MUL_LOOP);
+                        state = S_PRIMARY;
+                    } else {
+                        state = S_MUL_LOOP;
+                    }
+                }
+                case S_MUL_LOOP -> {
+                    int op = id();
+                    if (isMulOp(op)) {
+                        tokens.advance();
+                        int right = operand();
+                        if (right != NONE) {
+                            result = arith(op, result, right);
+                        } else {
+                            pushState(op);
+                            pushValue(result);
+                            pushState(S_MUL_RIGHT);
+                            state = S_PRIMARY;
+                        }
+                    } else {
+                        state = popState();
+                    }
+                }
+                case S_MUL_RIGHT -> {
+                    int left = popValue();
+                    result = arith(popState(), left, result);
+                    state = S_MUL_LOOP;
+                }
+                case S_PRIMARY -> {
+                    int k = kind();
+                    if (k == LITERAL || k == IDENTIFIER) {
+                        result = k == LITERAL ? symbols.literal(text()) : symbols.variable(text());
+                        tokens.advance();
+                        state = popState();
+                    } else if (id() == Lexeme.PIPE) {
+                        expect(Lexeme.PIPE);
+                        pushState(S_GROUP_END);
+                        state = S_EXPR;
+                    } else {
+                        throw new RuntimeException("Unexpected token in expression: " + current());
+                    }
+                }
+                case S_GROUP_END -> {
+                    expect(Lexeme.PIPE);
+                    state = popState();
+                }
+
+                // if |cond| ( ... ) elif ... else ( ... )      values: else, end
+                case S_IF -> {
+                    expect(Lexeme.IF);
+                    expect(Lexeme.PIPE);
+                    condLabel = newLabel();
+                    pushValue(condLabel);
+                    pushValue(newLabel());
+                    pushState(S_IF_COND);
+                    state = S_COND;
+                }
+                case S_IF_COND -> {
+                    expect(Lexeme.PIPE);
+                    expect(Lexeme.LPAREN);
+                    pushState(S_IF_BODY);
+                    state = S_STMT_LIST;
+                }
+                case S_IF_BODY -> {
+                    expect(Lexeme.RPAREN);
+                    int endLabel = popValue();
+                    int elseLabel = popValue();
+                    sink.emit(AtomOp.JMP, NONE, NONE, NONE, NO_CMP, endLabel);
+                    sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, elseLabel);
+                    pushValue(endLabel);
+                    pushState(S_ELSE_OPT);
+                    state = S_ELIF_LIST;
+                }
+                case S_ELIF_LIST -> {
+                    if (id() == Lexeme.ELIF) {
+                        expect(Lexeme.ELIF);
+                        expect(Lexeme.PIPE);
+                        condLabel = newLabel();
+                        pushValue(condLabel);
+                        pushState(S_ELIF_COND);
+                        state = S_COND;
+                    } else {
+                        state = popState();
+                    }
+                }
+                case S_ELIF_COND -> {
+                    expect(Lexeme.PIPE);
+                    expect(Lexeme.LPAREN);
+                    pushState(S_ELIF_BODY);
+                    state = S_STMT_LIST;
+                }
+                case S_ELIF_BODY -> {
+                    expect(Lexeme.RPAREN);
+                    sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, popValue());
+                    state = S_ELIF_LIST;
+                }
+                case S_ELSE_OPT -> {
+                    if (id() == Lexeme.ELSE) {
+                        expect(Lexeme.ELSE);
+                        expect(Lexeme.LPAREN);
+                        pushState(S_ELSE_BODY);
+                        state = S_STMT_LIST;
+                    } else {
+                        state = S_IF_END;
+                    }
+                }
+                case S_ELSE_BODY -> {
+                    expect(Lexeme.RPAREN);
+                    state = S_IF_END;
+                }
+                case S_IF_END -> {
+                    sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, popValue());
+                    state = popState();
+                }
+
+                // for |init| cond | update| ( ... )      values: start, end, update
+                case S_FOR -> {
+                    expect(Lexeme.FOR);
+                    expect(Lexeme.PIPE);
+                    pushState(S_FOR_INIT);
+                    if (isType(id())) state = S_VAR_DECL;
+                    else if (kind() == IDENTIFIER) state = S_ASSIGN;
+                    else state = popState();
+                }
+                case S_FOR_INIT -> {
+                    expect(Lexeme.PIPE);
+                    int loopStart = newLabel();
+                    condLabel = newLabel();
+                    pushValue(loopStart);
+                    pushValue(condLabel);
+                    pushValue(newLabel());
+                    sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, loopStart);
+                    pushState(S_FOR_COND);
+                    state = S_COND;
+                }
+                case S_FOR_COND -> {
+                    expect(Lexeme.PIPE);
+                    AtomBuffer update = new AtomBuffer(symbols);
+                    updates.push(update);
+                    heldSink = sink;
+                    sink = update;
+                    pushState(S_FOR_UPDATE);
+                    state = kind() == IDENTIFIER ? S_ASSIGN : popState();
+                }
+                case S_FOR_UPDATE -> {
+                    sink = heldSink;
+                    expect(Lexeme.PIPE);
+                    expect(Lexeme.LPAREN);
+                    pushState(S_FOR_BODY);
+                    state = S_STMT_LIST;
+                }
+                case S_FOR_BODY -> {
+                    expect(Lexeme.RPAREN);
+                    int updateLabel = popValue();
+                    int loopEnd = popValue();
+                    int loopStart = popValue();
+                    sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, updateLabel);
+                    updates.pop().replay(sink);
+                    sink.emit(AtomOp.JMP, NONE, NONE, NONE, NO_CMP, loopStart);
+                    sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, loopEnd);
+                    state = popState();
+                }
+
+                // during |cond| ( ... )      values: start, end
+                case S_DURING -> {
+                    expect(Lexeme.DURING);
+                    expect(Lexeme.PIPE);
+                    int loopStart = newLabel();
+                    condLabel = newLabel();
+                    pushValue(loopStart);
+                    pushValue(condLabel);
+                    sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, loopStart);
+                    pushState(S_DURING_COND);
+                    state = S_COND;
+                }
+                case S_DURING_COND -> {
+                    expect(Lexeme.PIPE);
+                    expect(Lexeme.LPAREN);
+                    pushState(S_DURING_BODY);
+                    state = S_STMT_LIST;
+                }
+                case S_DURING_BODY -> {
+                    expect(Lexeme.RPAREN);
+                    int loopEnd = popValue();
+                    int loopStart = popValue();
+                    sink.emit(AtomOp.JMP, NONE, NONE, NONE, NO_CMP, loopStart);
+                    sink.emit(AtomOp.LBL, NONE, NONE, NONE, NO_CMP, loopEnd);
+                    state = popState();
+                }
+                default -> throw new IllegalStateException("Bad parser state " + state);
+            }
         }
+        return result;
     }
 }
@@ -0,0 +1,176 @@
+import java.util.Arrays;
+
+/**
+ * Peephole pass over finished machine words.
+ *
+ * Tracks, for each register, which data cell it is known to mirror and
+ * which immediate it was loaded with since the last jump target, and drops:
+ * <ul>
+ *   <li>a LOD of a cell the register already holds (including the LOD right
+ *       after the STO that wrote it),</li>
+ *   <li>a LOD of an immediate the register already holds,</li>
+ *   <li>a STO of a register into the cell it already mirrors,</li>
+ *   <li>a JMP to the very next word, together with its CMP when it is a
+ *       conditional one, and a BR to the very next word.</li>
+ * </ul>
+ * Jump addresses are re-patched to the shifted code after every round, and
+ * rounds repeat until nothing more goes.
+ */
+public class Peephole {
+    private static final int UNKNOWN = -1;
+
+    private int removed = 0;
+
+    /**
+     * Words removed by all {@link #optimize} calls so far.
+     */
+    public int removed() {
+        return removed;
+    }
+
+    public int[] optimize(int[] code) {
+        while (true) {
+            boolean[] drop = new boolean[code.length];
+            int dropped = markRedundantMemory(code, drop) + markJumpsToNext(code, drop);
+            if (dropped == 0) return code;
+            code = compact(code, drop);
+            removed += dropped;
+        }
+    }
+
+    private static boolean[] jumpTargets(int[] code) {
+        boolean[] targets = new boolean[code.length + 1];
+        for (int word : code) {
+            if (Instruction.isJump(word)) targets[Instruction.address(word)] = true;
+        }
+        return targets;
+    }
+
+    private static int markRedundantMemory(int[] code, boolean[] drop) {
+        boolean[] targets = jumpTargets(code);
+        int[] holds = new int[16];
+        Arrays.fill(holds, UNKNOWN);
+        boolean[] constant = new boolean[16];
+        int[] value = new int[16];
+        int count = 0;
+
+        for (int pc = 0; pc < code.length; pc++) {
+            if (targets[pc]) {
+                Arrays.fill(holds, UNKNOWN);
+                Arrays.fill(constant, false);
+            }
+            int word = code[pc];
+            int r = Instruction.register(word);
+            int addr = Instruction.address(word);
+            switch (Instruction.opcode(word)) {
+                case Instruction.OPC_LOD -> {
+                    if (Instruction.isImmediate(word)) {
+                        if (constant[r] && value[r] == Instruction.immediate(word)) {
+                            drop[pc] = true;
+                            count++;
+                        } else {
+                            holds[r] = UNKNOWN;
+                            constant[r] = true;
+                            value[r] = Instruction.immediate(word);
+                        }
+                    } else if (holds[r] == addr) {
+                        drop[pc] = true;
+                        count++;
+                    } else {
+                        holds[r] = addr;
+                        constant[r] = false;
+                    }
+                }
+                case Instruction.OPC_STO -> {
+                    if (holds[r] == addr) {
+                        drop[pc] = true;
+                        count++;
+                    } else {
+                        for (int q = 0; q < holds.length; q++) {
+                            if (holds[q] == addr) holds[q] = UNKNOWN;
+                        }
+                        holds[r] = addr;
+                    }
+                }
+                case Instruction.OPC_CLR, Instruction.OPC_ADD, Instruction.OPC_SUB,
+                     Instruction.OPC_MUL, Instruction.OPC_DIV -> {
+                    holds[r] = UNKNOWN;
+                    constant[r] = false;
+                }
+                default -> {}
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A JMP to the next word goes there either way, but a conditional one
+     * also resets the compare flag, so its CMP goes with it. A conditional
+     * JMP is left alone if it is itself a jump target or its CMP overwrote
+     * an earlier, still unconsumed flag. A BR to the next word does nothing.
+     */
+    private static int markJumpsToNext(int[] code, boolean[] drop) {
+        boolean[] targets = jumpTargets(code);
+        int count = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            int word = code[pc];
+            if (!Instruction.isJump(word) || Instruction.address(word) != pc + 1 || drop[pc]) {
+                continue;
+            }
+            if (Instruction.isBranch(Instruction.opcode(word))) {
+                drop[pc] = true;
+                count++;
+                continue;
+            }
+            int flagSetAt = lastFlagWrite(code, pc);
+            if (flagSetAt < 0) {
+                drop[pc] = true;
+                count++;
+            } else if (flagSetAt == pc - 1 && !targets[pc] && !drop[pc - 1] && lastFlagWrite(code, pc - 1) < 0) {
+                drop[pc - 1] = true;
+                drop[pc] = true;
+                count += 2;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Index of the CMP whose flag the JMP at pc may consume, or -1 when the
+     * flag is known to be set there. A taken jump leaves the flag set, so
+     * only the fall-through path matters.
+     */
+    private static int lastFlagWrite(int[] code, int pc) {
+        for (int k = pc - 1; k >= 0; k--) {
+            int op = Instruction.opcode(code[k]);
+            if (op == Instruction.OPC_JMP) return -1;
+            if (op == Instruction.OPC_CMP) return k;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the dropped words; a jump to a dropped word lands on the next one kept.
+     */
+    private static int[] compact(int[] code, boolean[] drop) {
+        int[] newIndex = new int[code.length + 1];
+        int kept = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            newIndex[pc] = kept;
+            if (!drop[pc]) kept++;
+        }
+        newIndex[code.length] = kept;
+
+        int[] result = new int[kept];
+        int at = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            if (drop[pc]) continue;
+            int word = code[pc];
+            if (Instruction.isJump(word)) {
+                word = Instruction.withAddress(word, newIndex[Instruction.address(word)]);
+            }
+            result[at++] = word;
+        }
+        return result;
+    }
+}
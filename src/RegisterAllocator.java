@@ -0,0 +1,232 @@
+/**
+ * Code selection with registers for {@link CodeGenerator#generateWithRegisters}.
+ *
+ * Memory stays the home of every variable, but within a basic block the
+ * result of each atom is left in one of registers 1-15 and only stored when
+ * something needs it in memory: an operand slot (the machine only reads
+ * operands from memory or, for literals, from the word), the end of the
+ * block, or eviction when all registers are taken, least recently used
+ * first. A temp is dropped from its register after its last read (see
+ * {@link Liveness}), so one that is only read in the block that computes it
+ * never gets stored at all. Registers are written back and forgotten at
+ * every label and jump, so blocks agree on nothing but memory.
+ */
+final class RegisterAllocator {
+    private static final int NONE = SymbolTable.NONE;
+    private static final int FIRST_REGISTER = 1;
+    private static final int REGISTERS = 16;
+    // where[] value for a symbol that is only in memory; register 0 is never handed out
+    private static final int IN_MEMORY = 0;
+
+    private final CodeGenerator gen;
+    private final AtomBuffer atoms;
+    private final SymbolTable symbols;
+
+    private final int[] held = new int[REGISTERS];
+    private final boolean[] dirty = new boolean[REGISTERS];
+    private final long[] touched = new long[REGISTERS];
+    private long clock = 0;
+
+    private final int[] where;
+    private final Liveness liveness;
+
+    RegisterAllocator(CodeGenerator gen, AtomBuffer atoms, Liveness liveness) {
+        this.gen = gen;
+        this.atoms = atoms;
+        this.symbols = atoms.symbols;
+        this.liveness = liveness;
+        where = new int[symbols.size()];
+    }
+
+    void run() {
+        for (int i = 0; i < atoms.size(); i++) {
+            AtomOp op = atoms.op(i);
+            switch (op) {
+                case LBL -> {
+                    writeBack(i);
+                    forgetAll();
+                    gen.handleLabel(atoms.label(i));
+                }
+                case JMP -> {
+                    writeBack(i);
+                    forgetAll();
+                    gen.addJump(atoms.label(i));
+                }
+                case HLT -> {
+                    writeBack(i);
+                    gen.emitWord(Instruction.hlt());
+                }
+                case TST -> test(i);
+                case MOV -> move(i);
+                default -> arith(i);
+            }
+            releaseDead(i);
+        }
+        writeBack(atoms.size());
+    }
+
+    private void test(int i) {
+        int src1 = atoms.src1(i);
+        int src2 = atoms.src2(i);
+        if (src1 == NONE || src2 == NONE || atoms.cmp(i) == AtomBuffer.NO_CMP || atoms.label(i) == NONE) {
+            throw new IllegalArgumentException("TST needs src1, src2, cmp, label: " + atoms.atom(i));
+        }
+        if (atoms.cmp(i) == 0) {
+            writeBack(i);
+            gen.addJump(atoms.label(i));
+            return;
+        }
+        // BR compares two registers, so both operands are loaded unless already held
+        int r1 = inRegister(src1);
+        int r2 = inRegister(src2);
+        writeBack(i);
+        gen.addJump(Instruction.br(atoms.cmp(i), r1, r2, 0), atoms.label(i));
+    }
+
+    /**
+     * The register holding id, loading it into a clean one first if needed.
+     */
+    private int inRegister(int id) {
+        int r = where[id];
+        if (r == IN_MEMORY) {
+            r = allocate();
+            gen.emitWord(gen.operandWord(Instruction.OPC_LOD, 0, r, id));
+            bind(id, r, false);
+        } else {
+            // So that loading the other operand does not evict it
+            touched[r] = ++clock;
+        }
+        return r;
+    }
+
+    private void move(int i) {
+        int src = atoms.src1(i);
+        int dest = atoms.dest(i);
+        if (src == NONE || dest == NONE) {
+            throw new IllegalArgumentException("MOV needs src1 and dest: " + atoms.atom(i));
+        }
+        if (src == dest) {
+            // Nothing to do, but the variable still gets its cell
+            gen.addrOf(dest);
+            return;
+        }
+
+        int r = where[src];
+        if (r != IN_MEMORY && dying(src, i)) {
+            // The temp's register simply becomes dest's
+            unbind(src);
+            unbind(dest);
+            bind(dest, r, true);
+        } else if (r != IN_MEMORY) {
+            unbind(dest);
+            gen.emitWord(Instruction.sto(r, gen.addrOf(dest)));
+        } else {
+            unbind(dest);
+            r = allocate();
+            gen.emitWord(gen.operandWord(Instruction.OPC_LOD, 0, r, src));
+            bind(dest, r, true);
+        }
+    }
+
+    private void arith(int i) {
+        AtomOp op = atoms.op(i);
+        int src1 = atoms.src1(i);
+        int src2 = atoms.src2(i);
+        int dest = atoms.dest(i);
+        if (src1 == NONE || src2 == NONE || dest == NONE) {
+            throw new IllegalArgumentException(op + " needs src1, src2, dest: " + atoms.atom(i));
+        }
+        // Operands of ADD and MUL can swap so that a register value is the one kept
+        if ((op == AtomOp.ADD || op == AtomOp.MUL) && where[src1] == IN_MEMORY && where[src2] != IN_MEMORY) {
+            int t = src1;
+            src1 = src2;
+            src2 = t;
+        }
+
+        // The second operand can only be read from memory or the word itself
+        store(src2);
+
+        int r = where[src1];
+        if (r != IN_MEMORY) {
+            // Take over src1's register; keep its value in memory if it is still needed
+            if (src1 != dest && !dying(src1, i)) store(src1);
+            unbind(src1);
+        } else {
+            r = allocate();
+            gen.emitWord(gen.operandWord(Instruction.OPC_LOD, 0, r, src1));
+        }
+
+        gen.emitWord(gen.operandWord(CodeGenerator.arithOpcode(op), 0, r, src2));
+        unbind(dest);
+        bind(dest, r, true);
+    }
+
+    /**
+     * True when the atom at i is the last read of a temp.
+     */
+    private boolean dying(int id, int i) {
+        return liveness.diesAt(i, id);
+    }
+
+    private int allocate() {
+        int victim = FIRST_REGISTER;
+        for (int r = FIRST_REGISTER; r < REGISTERS; r++) {
+            if (held[r] == NONE) return r;
+            if (touched[r] < touched[victim]) victim = r;
+        }
+        store(held[victim]);
+        unbind(held[victim]);
+        return victim;
+    }
+
+    private void bind(int id, int r, boolean isDirty) {
+        held[r] = id;
+        dirty[r] = isDirty;
+        touched[r] = ++clock;
+        where[id] = r;
+    }
+
+    private void unbind(int id) {
+        int r = where[id];
+        if (r == IN_MEMORY) return;
+        held[r] = NONE;
+        dirty[r] = false;
+        where[id] = IN_MEMORY;
+    }
+
+    /**
+     * Writes a symbol's register back to memory if memory is behind.
+     */
+    private void store(int id) {
+        int r = where[id];
+        if (r == IN_MEMORY || !dirty[r]) return;
+        gen.emitWord(Instruction.sto(r, gen.addrOf(id)));
+        dirty[r] = false;
+    }
+
+    /**
+     * Stores every register memory is behind on, except temps atom i reads for the last time.
+     */
+    private void writeBack(int i) {
+        for (int r = FIRST_REGISTER; r < REGISTERS; r++) {
+            int id = held[r];
+            if (id != NONE && dirty[r] && !dying(id, i)) store(id);
+        }
+    }
+
+    private void forgetAll() {
+        for (int r = FIRST_REGISTER; r < REGISTERS; r++) {
+            if (held[r] != NONE) unbind(held[r]);
+        }
+    }
+
+    /**
+     * Frees the registers of temps atom i read for the last time or wrote for nothing.
+     */
+    private void releaseDead(int i) {
+        for (int r = FIRST_REGISTER; r < REGISTERS; r++) {
+            int id = held[r];
+            if (id != NONE && (dying(id, i) || id == atoms.dest(i) && liveness.isDeadStore(i))) unbind(id);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.function.IntConsumer;
+
+/**
+ * Fused lex -> parse -> codegen pipeline. The parser pulls tokens from a
+ * memory-mapped {@link TokenStream} and pushes each atom straight into an
+ * incremental {@link CodeGenerator}, so neither the token list nor the atom
+ * list is ever built; machine words reach out as soon as no pending forward
+ * jump can still change them.
+ */
+public class StreamingCompiler {
+    private StreamingCompiler() {}
+
+    public static void compile(File source, IntConsumer out) throws IOException {
+        run(source, out);
+    }
+
+    /**
+     * Compiles source into a program object file, writing the code as it is
+     * generated. Returns the number of code words.
+     */
+    public static int compile(File source, Path object) throws IOException {
+        try (ObjectFile.ProgramWriter writer = ObjectFile.programWriter(object)) {
+            CodeGenerator codeGen = run(source, writer);
+            writer.finish(codeGen.initialMemory(), codeGen.dataNames());
+            return writer.words();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static CodeGenerator run(File source, IntConsumer out) throws IOException {
+        try (TokenStream tokens = TokenStream.open(source)) {
+            SymbolTable symbols = new SymbolTable();
+            CodeGenerator codeGen = new CodeGenerator(out, symbols);
+            Parser parser = new Parser(tokens, codeGen, symbols);
+            parser.parseProgramIterative();
+            codeGen.finish();
+            return codeGen;
+        }
+    }
+}
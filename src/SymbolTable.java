@@ -0,0 +1,169 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns every name an atom can refer to into a dense int id: identifiers,
+ * literals, compiler temps and labels. Id 0 is {@link #NONE}, standing in for
+ * an absent operand.
+ *
+ * Temps and labels are numbered when they are created and only get a string
+ * ("t12", "L3") if someone asks for their name. Labels live in their own
+ * namespace, as they always did in the code generator. A literal's value is
+ * worked out once, when it is first interned.
+ */
+public class SymbolTable {
+    public static final int NONE = 0;
+
+    public static final int VARIABLE = 1;
+    public static final int LITERAL = 2;
+    public static final int TEMP = 3;
+    public static final int LABEL = 4;
+
+    private byte[] kinds = new byte[64];
+    private int[] ordinals = new int[64];
+    private String[] names = new String[64];
+    // Per literal: its value, and the first literal interned with that value
+    private int[] values = new int[64];
+    private int[] pooled = new int[64];
+    private int size = 1;
+
+    private final Map<String, Integer> data = new HashMap<>();
+    private final Map<Integer, Integer> byValue = new HashMap<>();
+    private final Map<String, Integer> labels = new HashMap<>();
+    private int tempCount = 0;
+    private int labelCount = 0;
+
+    public int variable(String name) {
+        return intern(data, name, VARIABLE);
+    }
+
+    /**
+     * Interns a literal; its number is truncated toward zero and must then
+     * fit in an int.
+     */
+    public int literal(String text) {
+        Integer known = data.get(text);
+        if (known != null) return known;
+        int value;
+        try {
+            value = new BigDecimal(text).setScale(0, RoundingMode.DOWN).intValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Literal out of range: " + text);
+        }
+        int id = intern(data, text, LITERAL);
+        values[id] = value;
+        Integer first = byValue.putIfAbsent(value, id);
+        pooled[id] = first == null ? id : first;
+        return id;
+    }
+
+    /**
+     * Interns an operand name as it appears in an {@link Atom}: literals start
+     * with a digit, or a minus sign once folding has produced them.
+     */
+    public int operand(String name) {
+        if (name == null) return NONE;
+        char first = name.charAt(0);
+        return Character.isDigit(first) || first == '-' ? literal(name) : variable(name);
+    }
+
+    public int label(String name) {
+        if (name == null) return NONE;
+        return intern(labels, name, LABEL);
+    }
+
+    public int newTemp() {
+        return add(TEMP, tempCount++, null);
+    }
+
+    public int newLabel() {
+        return add(LABEL, labelCount++, null);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int kind(int id) {
+        return kinds[id];
+    }
+
+    public boolean isTemp(int id) {
+        return kinds[id] == TEMP;
+    }
+
+    public boolean isLiteral(int id) {
+        return kinds[id] == LITERAL;
+    }
+
+    /**
+     * True for a label interned by name through {@link #label}, as opposed to
+     * one made by {@link #newLabel}.
+     */
+    public boolean isNamedLabel(int id) {
+        return kinds[id] == LABEL && Integer.valueOf(id).equals(labels.get(name(id)));
+    }
+
+    /**
+     * True for a name of the form {@link #name} gives a label made by
+     * {@link #newLabel}, such as the parser's "L3".
+     */
+    public static boolean isUnnamedLabel(String name) {
+        if (name == null || name.length() < 2 || name.charAt(0) != 'L') return false;
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Run-time value of a literal: its number truncated toward zero.
+     */
+    public int literalValue(int id) {
+        return values[id];
+    }
+
+    /**
+     * The first literal interned with the same value as literal id, such as
+     * "5" for "5.0", so equal values can share one data cell.
+     */
+    public int pooledLiteral(int id) {
+        return pooled[id];
+    }
+
+    public String name(int id) {
+        if (id == NONE) return null;
+        String name = names[id];
+        if (name == null) {
+            name = (kinds[id] == TEMP ? "t" : "L") + ordinals[id];
+            names[id] = name;
+        }
+        return name;
+    }
+
+    private int intern(Map<String, Integer> table, String name, int kind) {
+        Integer id = table.get(name);
+        if (id != null) return id;
+        int newId = add(kind, 0, name);
+        table.put(name, newId);
+        return newId;
+    }
+
+    private int add(int kind, int ordinal, String name) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            ordinals = Arrays.copyOf(ordinals, capacity);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+            pooled = Arrays.copyOf(pooled, capacity);
+        }
+        kinds[size] = (byte) kind;
+        ordinals[size] = ordinal;
+        names[size] = name;
+        return size++;
+    }
+}
@@ -0,0 +1,155 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Token list laid out as parallel int arrays: kind code, interned
+ * {@link Lexeme} id, and the lexeme's start/length in the source bytes.
+ *
+ * Adding a token allocates nothing once the arrays have grown. Lexemes that
+ * are not a contiguous slice of the source (ERROR tokens, lexemes split by an
+ * eagerly emitted operator, tokens built from a {@code List<Token>}) are kept
+ * in a shared char pool instead, marked by a negative start of {@code ~offset}.
+ */
+public class TokenBuffer {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final ByteBuffer source;
+    private int[] kinds;
+    private int[] ids;
+    private int[] starts;
+    private int[] lengths;
+    private int size = 0;
+
+    private final StringBuilder pool = new StringBuilder();
+    private byte[] scratch = new byte[64];
+
+    public TokenBuffer(ByteBuffer source) {
+        this(source, INITIAL_CAPACITY);
+    }
+
+    TokenBuffer(ByteBuffer source, int capacity) {
+        this.source = source;
+        capacity = Math.max(capacity, 1);
+        kinds = new int[capacity];
+        ids = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+    }
+
+    /**
+     * Joins buffers lexed from consecutive chunks of the same source, in order.
+     */
+    static TokenBuffer concat(ByteBuffer source, List<TokenBuffer> parts) {
+        int total = 0;
+        for (TokenBuffer part : parts) total += part.size;
+        TokenBuffer joined = new TokenBuffer(source, total + 1);
+        for (TokenBuffer part : parts) {
+            int n = part.size;
+            System.arraycopy(part.kinds, 0, joined.kinds, joined.size, n);
+            System.arraycopy(part.ids, 0, joined.ids, joined.size, n);
+            System.arraycopy(part.starts, 0, joined.starts, joined.size, n);
+            System.arraycopy(part.lengths, 0, joined.lengths, joined.size, n);
+            int poolBase = joined.pool.length();
+            if (poolBase > 0) {
+                for (int i = joined.size; i < joined.size + n; i++) {
+                    if (joined.starts[i] < 0) joined.starts[i] = ~(~joined.starts[i] + poolBase);
+                }
+            }
+            joined.pool.append(part.pool);
+            joined.size += n;
+        }
+        return joined;
+    }
+
+    public static TokenBuffer of(List<Token> tokens) {
+        TokenBuffer buffer = new TokenBuffer(null);
+        for (Token t : tokens) {
+            int kind = TokenKind.valueOf(t.type).code();
+            int id = (kind == TokenKind.IDENTIFIER.code() || kind == TokenKind.LITERAL.code()
+                    || kind == TokenKind.ERROR.code()) ? Lexeme.NONE : Lexeme.lookup(t.value);
+            buffer.addText(kind, id, t.value);
+        }
+        return buffer;
+    }
+
+    void add(int kind, int id, int start, int length) {
+        if (size == kinds.length) grow();
+        kinds[size] = kind;
+        ids[size] = id;
+        starts[size] = start;
+        lengths[size] = length;
+        size++;
+    }
+
+    void addText(int kind, int id, CharSequence text) {
+        int offset = pool.length();
+        pool.append(text);
+        add(kind, id, ~offset, text.length());
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int kind(int i) {
+        return kinds[i];
+    }
+
+    public int id(int i) {
+        return ids[i];
+    }
+
+    public String text(int i) {
+        int start = starts[i];
+        int length = lengths[i];
+        if (start < 0) {
+            return pool.substring(~start, ~start + length);
+        }
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        source.get(start, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public Token token(int i) {
+        return new Token(TokenKind.of(kinds[i]).name(), text(i));
+    }
+
+    /**
+     * Cursor over this buffer for the parser. Past the last token it reports EOF.
+     */
+    public TokenSource cursor() {
+        return new TokenSource() {
+            private int pos = 0;
+
+            @Override
+            public int kind() {
+                return pos < size ? kinds[pos] : TokenKind.EOF.code();
+            }
+
+            @Override
+            public int id() {
+                return pos < size ? ids[pos] : Lexeme.NONE;
+            }
+
+            @Override
+            public String text() {
+                return pos < size ? TokenBuffer.this.text(pos) : "EOF";
+            }
+
+            @Override
+            public void advance() {
+                pos++;
+            }
+        };
+    }
+}
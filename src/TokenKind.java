@@ -0,0 +1,19 @@
+public enum TokenKind {
+    EOF,
+    KEYWORD,
+    IDENTIFIER,
+    LITERAL,
+    OPERATOR,
+    DELIM,
+    ERROR;
+
+    private static final TokenKind[] VALUES = values();
+
+    public static TokenKind of(int code) {
+        return VALUES[code];
+    }
+
+    public int code() {
+        return ordinal();
+    }
+}
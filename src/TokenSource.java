@@ -0,0 +1,18 @@
+/**
+ * Forward-only cursor over a token sequence, the way the parser consumes it:
+ * look at the current token, then advance. Once the input is exhausted the
+ * current token stays EOF.
+ */
+public interface TokenSource {
+    int kind();
+
+    int id();
+
+    String text();
+
+    void advance();
+
+    default Token token() {
+        return new Token(TokenKind.of(kind()).name(), text());
+    }
+}
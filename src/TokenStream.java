@@ -0,0 +1,357 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull-style lexer that scans a memory-mapped source file byte by byte.
+ *
+ * Produces exactly the tokens {@link Lexer#tokenize(File)} does (same
+ * transition table, same {@code >=}/{@code <=} lookahead, same ERROR tokens),
+ * but one at a time through {@link #nextToken()}, so memory stays bounded by
+ * the longest lexeme instead of the size of the file. Sources are UTF-8; the
+ * line terminators are the ones {@link java.util.Scanner#nextLine()} honours.
+ *
+ * It can also be handed to {@link Parser} directly as a {@link TokenSource};
+ * use one interface or the other on a given stream, not both.
+ */
+public class TokenStream implements Iterator<Token>, TokenSource, Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer src;
+    private final int end;
+    private int pos;
+
+    // Lexer state carried between tokens
+    private int state = Lexer.S_START;
+    private int lexemeStart = -1;
+    private int lexemeEnd;
+    private final StringBuilder spill = new StringBuilder();
+    private boolean spilled;
+    private char pendingLow;
+    private boolean eofReturned;
+
+    // Decoder scratch for the character at pos
+    private int charLen;
+    private char nextLow;
+    private byte[] scratch = new byte[64];
+
+    // Last token produced by scan()
+    private int kind;
+    private int id;
+    private int start;
+    private int length;
+    private boolean fromSpill;
+
+    private Token lookahead;
+    private boolean started;
+
+    TokenStream(ByteBuffer src, int from, int to, FileChannel channel) {
+        this.src = src;
+        this.pos = from;
+        this.end = to;
+        this.channel = channel;
+    }
+
+    public TokenStream(ByteBuffer src) {
+        this(src, 0, src.limit(), null);
+    }
+
+    public static TokenStream open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+        try {
+            ByteBuffer mapped = map(channel, file);
+            return new TokenStream(mapped, 0, mapped.limit(), channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps the whole file read-only. The mapping stays valid after the file is closed.
+     */
+    static ByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return map(raf.getChannel(), file);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, File file) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Source file too large to map: " + file + " (" + size + " bytes)");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Stream over src[from, to) that stops without an EOF token, for lexing one
+     * line-aligned chunk of a larger source.
+     */
+    static TokenStream chunk(ByteBuffer src, int from, int to) {
+        TokenStream stream = new TokenStream(src, from, to, null);
+        stream.eofReturned = true;
+        return stream;
+    }
+
+    @Override
+    public int kind() {
+        if (!started) advance();
+        return kind;
+    }
+
+    @Override
+    public int id() {
+        if (!started) advance();
+        return id;
+    }
+
+    @Override
+    public void advance() {
+        started = true;
+        scan();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (lookahead == null && scan()) {
+            lookahead = new Token(TokenKind.of(kind).name(), lexeme());
+        }
+        return lookahead != null;
+    }
+
+    @Override
+    public Token next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Token t = lookahead;
+        lookahead = null;
+        return t;
+    }
+
+    /**
+     * Returns the next token, ending with {@code <EOF, EOF>}; null once that has been returned.
+     */
+    public Token nextToken() {
+        return hasNext() ? next() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+
+    /**
+     * Lexes everything that is left into a {@link TokenBuffer} backed by this stream's source bytes.
+     */
+    public TokenBuffer drain() {
+        return drainInto(new TokenBuffer(src));
+    }
+
+    TokenBuffer drainInto(TokenBuffer buffer) {
+        while (scan()) {
+            if (fromSpill) buffer.addText(kind, id, spill);
+            else buffer.add(kind, id, start, length);
+        }
+        return buffer;
+    }
+
+    /**
+     * Advances to the next token without materializing it. On true, the token is
+     * described by kind, id and either a source slice or the spill buffer.
+     */
+    boolean scan() {
+        while (true) {
+            if (pos >= end && pendingLow == 0) {
+                if (flushLine()) return true;
+                if (eofReturned) return false;
+                eofReturned = true;
+                kind = TokenKind.EOF.code();
+                id = Lexeme.NONE;
+                spill.setLength(0);
+                spill.append("EOF");
+                fromSpill = true;
+                return true;
+            }
+
+            char c = decode();
+
+            if (isLineTerminator(c)) {
+                consume();
+                if (flushLine()) return true;
+                continue;
+            }
+
+            // Look ahead for size two operators
+            if (Lexer.OPERATOR_CHARS.indexOf(c) != -1) {
+                kind = TokenKind.OPERATOR.code();
+                fromSpill = false;
+                start = pos;
+                length = ((c == '>' || c == '<') && pos + 1 < end && src.get(pos + 1) == '=') ? 2 : 1;
+                id = Lexeme.lookup(src, start, length);
+                pos += length;
+                return true;
+            }
+
+            int event = Lexer.eventOf(c);
+            int nextState = Lexer.nextState(state, event);
+
+            if (nextState == Lexer.S_ACCEPT) { // Character completes the token, reprocess it from START
+                boolean emitted = accept();
+                if (event == Lexer.E_WHITESPACE) consume();
+                if (emitted) return true;
+            } else if (nextState == Lexer.S_ERROR) { // Invalid character replaces whatever was buffered
+                resetLexeme();
+                consume();
+                kind = TokenKind.ERROR.code();
+                id = Lexeme.NONE;
+                spill.setLength(0);
+                spill.append(c);
+                fromSpill = true;
+                return true;
+            } else {
+                append(c);
+                state = nextState;
+                consume();
+            }
+        }
+    }
+
+    @Override
+    public String text() {
+        if (!started) advance();
+        return lexeme();
+    }
+
+    private String lexeme() {
+        return fromSpill ? spill.toString() : slice(start, length);
+    }
+
+    private boolean flushLine() {
+        return Lexer.nextState(state, Lexer.E_END) == Lexer.S_ACCEPT && accept();
+    }
+
+    /**
+     * Emits the buffered lexeme for the current state, if it is non-blank, and returns to START.
+     */
+    private boolean accept() {
+        boolean emitted = false;
+        if (lexemeStart >= 0) {
+            if (state == Lexer.S_IDENTIFIER) {
+                finishLexeme();
+                kind = Lexeme.isKeyword(id) ? TokenKind.KEYWORD.code() : TokenKind.IDENTIFIER.code();
+                emitted = true;
+            } else if (state == Lexer.S_NUMBER || state == Lexer.S_DECIMAL) {
+                finishLiteral();
+                kind = TokenKind.LITERAL.code();
+                emitted = true;
+            } else if (state == Lexer.S_OPERATOR) {
+                finishLexeme();
+                kind = TokenKind.OPERATOR.code();
+                emitted = true;
+            } else if (state == Lexer.S_DELIM) {
+                finishLexeme();
+                kind = TokenKind.DELIM.code();
+                emitted = true;
+            }
+        }
+        resetLexeme();
+        return emitted;
+    }
+
+    private void finishLexeme() {
+        fromSpill = spilled;
+        start = lexemeStart;
+        length = lexemeEnd - lexemeStart;
+        id = spilled ? Lexeme.lookup(spill) : Lexeme.lookup(src, start, length);
+    }
+
+    private void finishLiteral() {
+        fromSpill = spilled;
+        start = lexemeStart;
+        length = lexemeEnd - lexemeStart;
+        id = Lexeme.NONE;
+    }
+
+    private void resetLexeme() {
+        lexemeStart = -1;
+        spilled = false;
+        state = Lexer.S_START;
+    }
+
+    /**
+     * Adds the character at pos to the current lexeme. Leading characters that
+     * String.trim() would drop are not recorded, and a lexeme interrupted by an
+     * operator (which Lexer emits eagerly) is copied into the spill buffer.
+     */
+    private void append(char c) {
+        if (spilled) {
+            spill.append(c);
+        } else if (lexemeStart < 0) {
+            if (c > ' ') {
+                lexemeStart = pos;
+                lexemeEnd = pos + charLen;
+            }
+        } else if (pos == lexemeEnd) {
+            lexemeEnd = pos + charLen;
+        } else {
+            spill.setLength(0);
+            spill.append(slice(lexemeStart, lexemeEnd - lexemeStart)).append(c);
+            spilled = true;
+        }
+    }
+
+    private void consume() {
+        pos += charLen;
+        pendingLow = nextLow;
+    }
+
+    /**
+     * Decodes the UTF-8 character at pos, recording its width in charLen.
+     * Supplementary characters are returned as two surrogates, like Scanner would.
+     */
+    private char decode() {
+        nextLow = 0;
+        if (pendingLow != 0) {
+            charLen = 4;
+            return pendingLow;
+        }
+        int b0 = src.get(pos);
+        if (b0 >= 0) {
+            charLen = 1;
+            return (char) b0;
+        }
+        charLen = 1;
+        int n = (b0 & 0xE0) == 0xC0 ? 2 : (b0 & 0xF0) == 0xE0 ? 3 : (b0 & 0xF8) == 0xF0 ? 4 : 0;
+        if (n == 0 || pos + n > end) return '\uFFFD';
+        int cp = b0 & (0x7F >> n);
+        for (int k = 1; k < n; k++) {
+            int b = src.get(pos + k);
+            if ((b & 0xC0) != 0x80) return '\uFFFD';
+            cp = (cp << 6) | (b & 0x3F);
+        }
+        if (n == 4) {
+            if (cp < 0x10000 || cp > Character.MAX_CODE_POINT) return '\uFFFD';
+            charLen = 0;
+            nextLow = Character.lowSurrogate(cp);
+            return Character.highSurrogate(cp);
+        }
+        charLen = n;
+        return (char) cp;
+    }
+
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private String slice(int from, int len) {
+        if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+        src.get(from, scratch, 0, len);
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+}
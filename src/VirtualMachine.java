@@ -0,0 +1,200 @@
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Interpreter for the words produced by {@link CodeGenerator}.
+ *
+ * The machine has sixteen registers, an int data memory and a flag. CMP sets
+ * the flag to (register cmp memory[address]) for the compare codes of
+ * {@link Parser} (0 always, 1 =, 2 &lt;, 3 &gt;, 4 &lt;=, 5 &gt;=, 6 !=); JMP
+ * jumps only while the flag is set and then sets it again, so a JMP that
+ * does not follow a CMP is unconditional. BR compares two registers and
+ * jumps on the result without touching the flag. An instruction with the
+ * {@link Instruction#IMMEDIATE} bit uses its address field as the operand
+ * instead of reading memory. Execution stops at HLT or when it runs off the
+ * end of the code.
+ *
+ * Words are decoded once by {@link #load}; a loaded program is immutable and
+ * may be run any number of times, from any number of threads, each run on
+ * its own memory.
+ */
+public final class VirtualMachine {
+    // Decoded opcodes of immediate forms; their addrs entry is the operand
+    private static final int ADD_IMMEDIATE = Instruction.OPC_ADD | Instruction.IMMEDIATE;
+    private static final int SUB_IMMEDIATE = Instruction.OPC_SUB | Instruction.IMMEDIATE;
+    private static final int MUL_IMMEDIATE = Instruction.OPC_MUL | Instruction.IMMEDIATE;
+    private static final int DIV_IMMEDIATE = Instruction.OPC_DIV | Instruction.IMMEDIATE;
+    private static final int CMP_IMMEDIATE = Instruction.OPC_CMP | Instruction.IMMEDIATE;
+    private static final int LOD_IMMEDIATE = Instruction.OPC_LOD | Instruction.IMMEDIATE;
+
+    private final byte[] ops;
+    private final byte[] cmps;
+    private final byte[] regs;
+    // Second register of a BR
+    private final byte[] regs2;
+    private final int[] addrs;
+    private final int memorySize;
+
+    private VirtualMachine(byte[] ops, byte[] cmps, byte[] regs, byte[] regs2, int[] addrs, int memorySize) {
+        this.ops = ops;
+        this.cmps = cmps;
+        this.regs = regs;
+        this.regs2 = regs2;
+        this.addrs = addrs;
+        this.memorySize = memorySize;
+    }
+
+    /**
+     * Decodes code and checks every opcode and jump target up front, so the
+     * run loop never has to.
+     */
+    public static VirtualMachine load(int[] code) {
+        return load(IntBuffer.wrap(code));
+    }
+
+    /**
+     * Same as {@link #load(int[])} for the words from code's position to its
+     * limit, such as those of a mapped {@link ObjectFile}.
+     */
+    public static VirtualMachine load(IntBuffer code) {
+        int base = code.position();
+        int n = code.remaining();
+        byte[] ops = new byte[n];
+        byte[] cmps = new byte[n];
+        byte[] regs = new byte[n];
+        byte[] regs2 = new byte[n];
+        int[] addrs = new int[n];
+        int memorySize = 0;
+        for (int pc = 0; pc < n; pc++) {
+            int word = code.get(base + pc);
+            int op = Instruction.opcode(word);
+            int addr = Instruction.address(word);
+            int cmp = Instruction.cmpCode(word);
+            if (op == Instruction.OPC_CMP && cmp > 6) {
+                throw new IllegalArgumentException("Unknown compare code " + cmp + " at " + pc);
+            }
+            if (Instruction.isBranch(op)) {
+                // All BR opcodes run as one, with the compare code alongside
+                if (addr > n) throw new IllegalArgumentException("Jump to " + addr + " outside code at " + pc);
+                cmp = Instruction.branchCmp(word);
+                regs2[pc] = (byte) Instruction.branchRegister(word);
+                op = Instruction.OPC_BR;
+            } else if (Instruction.isImmediate(word)) {
+                if (!Instruction.takesImmediate(op)) {
+                    throw new IllegalArgumentException("Opcode " + op + " takes no immediate at " + pc);
+                }
+                addr = Instruction.immediate(word);
+                op |= Instruction.IMMEDIATE;
+            } else if (op == Instruction.OPC_JMP) {
+                if (addr > n) throw new IllegalArgumentException("Jump to " + addr + " outside code at " + pc);
+            } else if (op != Instruction.OPC_CLR && op != Instruction.OPC_HLT) {
+                memorySize = Math.max(memorySize, addr + 1);
+            }
+            ops[pc] = (byte) op;
+            cmps[pc] = (byte) cmp;
+            regs[pc] = (byte) Instruction.register(word);
+            addrs[pc] = addr;
+        }
+        return new VirtualMachine(ops, cmps, regs, regs2, addrs, memorySize);
+    }
+
+    /**
+     * Smallest memory that covers every address the code touches.
+     */
+    public int memorySize() {
+        return memorySize;
+    }
+
+    public int codeSize() {
+        return ops.length;
+    }
+
+    /**
+     * Runs the program on memory, updating it in place, and returns the number
+     * of instructions executed.
+     */
+    public long run(int[] memory) {
+        return run(memory, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #run(int[])}, but fails once more than maxSteps
+     * instructions have executed.
+     */
+    public long run(int[] memory, long maxSteps) {
+        if (memory.length < memorySize) {
+            throw new IllegalArgumentException("Program needs " + memorySize + " memory cells, got " + memory.length);
+        }
+        final byte[] ops = this.ops;
+        final byte[] cmps = this.cmps;
+        final byte[] regs = this.regs;
+        final byte[] regs2 = this.regs2;
+        final int[] addrs = this.addrs;
+        final int n = ops.length;
+        final int[] r = new int[16];
+        boolean flag = true;
+        long steps = 0;
+        int pc = 0;
+
+        while (pc < n) {
+            if (++steps > maxSteps) {
+                throw new IllegalStateException("Step limit of " + maxSteps + " exceeded at " + pc);
+            }
+            int reg = regs[pc];
+            int addr = addrs[pc];
+            switch (ops[pc]) {
+                case Instruction.OPC_CLR -> r[reg] = 0;
+                case Instruction.OPC_ADD -> r[reg] += memory[addr];
+                case Instruction.OPC_SUB -> r[reg] -= memory[addr];
+                case Instruction.OPC_MUL -> r[reg] *= memory[addr];
+                case Instruction.OPC_DIV -> r[reg] /= memory[addr];
+                case Instruction.OPC_JMP -> {
+                    if (flag) {
+                        pc = addr;
+                        continue;
+                    }
+                    flag = true;
+                }
+                case Instruction.OPC_CMP -> flag = compare(cmps[pc], r[reg], memory[addr]);
+                case Instruction.OPC_BR -> {
+                    if (compare(cmps[pc], r[reg], r[regs2[pc]])) {
+                        pc = addr;
+                        continue;
+                    }
+                }
+                case Instruction.OPC_LOD -> r[reg] = memory[addr];
+                case Instruction.OPC_STO -> memory[addr] = r[reg];
+                case ADD_IMMEDIATE -> r[reg] += addr;
+                case SUB_IMMEDIATE -> r[reg] -= addr;
+                case MUL_IMMEDIATE -> r[reg] *= addr;
+                case DIV_IMMEDIATE -> r[reg] /= addr;
+                case CMP_IMMEDIATE -> flag = compare(cmps[pc], r[reg], addr);
+                case LOD_IMMEDIATE -> r[reg] = addr;
+                default -> {
+                    return steps;
+                }
+            }
+            pc++;
+        }
+        return steps;
+    }
+
+    static boolean compare(int cmp, int left, int right) {
+        return switch (cmp) {
+            case 1 -> left == right;
+            case 2 -> left < right;
+            case 3 -> left > right;
+            case 4 -> left <= right;
+            case 5 -> left >= right;
+            case 6 -> left != right;
+            default -> true;
+        };
+    }
+
+    /**
+     * Fresh copy of image sized for this program.
+     */
+    public int[] newMemory(int[] image) {
+        return Arrays.copyOf(image, Math.max(image.length, memorySize));
+    }
+}